@@ -1,46 +1,30 @@
 package org.cougaar.profiler.examples;
 
 import org.cougaar.profiler.Options;
+import org.cougaar.profiler.OptionsRules;
 
 public class MyConfig {
 
   /**
-   * Option that will track 100% of allocations,
-   * record allocation timestamp,
-   * record allocation stacktrace,
-   * record size/capacity/context.
+   * Profiling rules, see OptionsRules for the format.
    * <p>
-   * This is the best detail but the most overhead.
-   */
-  private static final Options FULL_DETAIL =
-    new Options(
-        true, // time
-        true, // stack
-        true, // size
-        true, // capacity
-        true, // context
-        1.00  // sampleRatio
-        );
-
-  /**
-   * Track only 1% of allocations,
-   * record only the instance itself,
-   * allow size/capacity.
+   * For our "SimpleTest" we only care about HashMap, so we track
+   * every allocation with the best detail (timestamp, stacktrace,
+   * size/capacity/context) but the most overhead.
+   * <p>
+   * As an example, we also track 1% of the rest of "java.*" and
+   * record only the instance itself and its size/capacity.  This
+   * is very low overhead but only samples a small subset of the
+   * instances, which is ideal for the initial profiling runs to get
+   * a rough idea of the allocation counts.
    * <p>
-   * This is very low overhead but only samples a small
-   * subset of the instances.  This is ideal for the
-   * initial profiling runs, to get a rough idea of the
-   * allocation counts.
+   * Everything else will be ignored.
    */
-  private static final Options MIN_DETAIL =
-    new Options(
-        false, // time
-        false, // stack
-        true,  // size
-        true,  // capacity
-        false, // context
-        0.01   // sampleRatio
-        );
+  private static final OptionsRules RULES =
+    OptionsRules.compile(new String[] {
+      "java.util.HashMap = time stack size capacity context",
+      "java.* = size capacity ratio=0.01",
+    });
 
   /*
    * The profiled class will call this method to get its options.
@@ -54,17 +38,8 @@ public class MyConfig {
   public static final Options getOptions(
       String module,
       String classname) {
-    if (classname.equals("java.util.HashMap")) {
-      // for our "SimpleTest" we only care about HashMap.
-      // we want to track every allocation, timestamp, and stack
-      return FULL_DETAIL;
-    } else if (classname.startsWith("java.")) {
-      // as an example, let's also track the rest of "java.*"
-      // at a minimal level 
-      return MIN_DETAIL;
-    } else {
-      // everything else will be ignored
-      return null;
-    }
+    // null while the rules are compiled
+    OptionsRules r = RULES;
+    return (r == null ? null : r.getOptions(module, classname));
   }
 }
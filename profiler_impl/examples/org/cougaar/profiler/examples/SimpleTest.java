@@ -93,11 +93,11 @@ public class SimpleTest {
     String[] classes = tracker.getClassNames();
     int n = classes.length;
     System.out.println("class_stats["+n+"]:");
+    // force update
+    tracker.updateAll(0);
     for (int i = 0 ; i < n; i++) {
       String classname = classes[i];
       ClassTracker ct = tracker.getClassTracker(classname);
-      // force update
-      InstanceStats[] ignoreme = ct.update();
       printClassStats(ct);
     }
   }
@@ -191,23 +191,22 @@ public class SimpleTest {
         "\n    capacity_bytes:     "+is.getCapacityBytes()+
         "\n    agent:              "+is.getAgentName()+
         "\n    ");
-    printStack(is.getThrowable(), maxStackLines);
+    printStack(is.getAllocationSite(), maxStackLines);
   }
 
   private static void printStack(
-      Throwable throwable,
+      AllocationSite site,
       int maxStackLines) {
-    if (throwable == null) {
+    if (site == null) {
       System.out.println("allocation-point stack[]");
       return;
     }
-    StackTraceElement ste[] = throwable.getStackTrace();
-    int LINES_TO_SKIP = 5; // lines within the profiler
-    int lines = Math.min(ste.length, maxStackLines+LINES_TO_SKIP);
+    // the site excludes the lines within the profiler
+    StackTraceElement ste[] = site.getStackTrace();
+    int lines = Math.min(ste.length, maxStackLines);
     System.out.println(
-        "stack["+
-        (lines-LINES_TO_SKIP)+" of "+ste.length+"]:");
-    for (int j = LINES_TO_SKIP; j < lines; j++) {
+        "stack["+lines+" of "+ste.length+"]:");
+    for (int j = 0; j < lines; j++) {
       System.out.println(
           "      "+
           ste[j].getClassName()+"."+
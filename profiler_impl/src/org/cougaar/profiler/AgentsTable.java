@@ -21,57 +21,217 @@
 package org.cougaar.profiler;
 
 /**
- * Simple map of (String, ClassStats) pairs.
+ * Hashed map of (String, ClassStats) pairs.
+ * <p>
+ * A ClassTracker keeps one of these to count its live/gc'ed
+ * instances per agent as they are allocated and gc'ed, plus a
+ * linked list of each agent's instances for agent-scoped queries.
+ * Updates and sweeps use temporary tables to collect the per-agent
+ * size stats.
+ * <p>
+ * Every context-tracked allocation looks up its agent's entry, so
+ * "getEntry" and "getOrCreateEntry" don't lock unless they create
+ * an entry.  As in the TrackerRegistry, an entry's fields are final
+ * and a resized table is fully built before it is published through
+ * the volatile field.  A reader that misses a concurrently added
+ * entry locks and re-checks before adding.
  */
 class AgentsTable {
 
+  // open addressing by name hashcode
+  private volatile Entry[] table = new Entry[16];
   private int count;
-  private String[] names;
-  private ClassStats[] stats;
 
-  public String[] getNames() {
+  public synchronized String[] getNames() {
     String[] ret = new String[count];
-    for (int i = 0; i < count; i++) {
-      ret[i] = names[i];
+    int j = 0;
+    for (int i = 0; i < table.length; i++) {
+      Entry e = table[i];
+      if (e != null) {
+        ret[j++] = e.name;
+      }
     }
     return ret;
   }
 
-  public ClassStats get(String agent) {
-    agent = (agent == null ? null : agent.intern());
-    for (int j = 0; j < count; j++) {
-      if (names[j] == agent) {
-        return stats[j];
-      }
+  public synchronized ClassStats get(String agent) {
+    if (agent == null) {
+      return null;
     }
-    return null;
+    Entry e = table[find(table, agent)];
+    return (e == null ? null : e.stats);
   }
 
-  public void put(String agent, ClassStats cs) {
+  public synchronized void put(String agent, ClassStats cs) {
     // assert (get(agent) == null);
-    if (count == 0) {
-      names = new String[17];
-      stats = new ClassStats[17];
+    insert(new Entry(agent, cs));
+  }
+
+  /** @return the entry for an agent, or null */
+  Entry getEntry(String agent) {
+    if (agent == null) {
+      return null;
     }
-    if ((count + 1) >= names.length) {
-      int newCapacity = 2 * count;
-      String[] oldAgentNames = names;
-      names = new String[newCapacity];
-      System.arraycopy(oldAgentNames, 0, names, 0, count);
-      ClassStats[] oldAgentStats = stats;
-      stats = new ClassStats[newCapacity];
-      System.arraycopy(oldAgentStats, 0, stats, 0, count);
+    Entry[] t = table;
+    return t[find(t, agent)];
+  }
+
+  /** get the entry for an agent, creating it if necessary */
+  Entry getOrCreateEntry(String agent, ClassTracker ct) {
+    Entry[] t = table;
+    Entry e = t[find(t, agent)];
+    if (e != null) {
+      return e;
+    }
+    synchronized (this) {
+      e = table[find(table, agent)];
+      if (e == null) {
+        e = new Entry(agent, ct.newClassStats(1));
+        insert(e);
+      }
+      return e;
     }
-    names[count] = agent;
-    stats[count] = cs;
-    ++count;
   }
 
-  public void reset() {
-    for (int i = 0; i < count; i++) {
-      ClassStats cs = stats[i];
-      cs.resetInstances();
-      cs.reset();
+  /** merge another table's stats into this table */
+  public void addAll(AgentsTable from) {
+    Entry[] t;
+    synchronized (from) {
+      t = from.table.clone();
+    }
+    for (int i = 0; i < t.length; i++) {
+      Entry fe = t[i];
+      if (fe == null) {
+        continue;
+      }
+      ClassStats cs = get(fe.name);
+      if (cs == null) {
+        put(fe.name, fe.stats);
+      } else {
+        cs.addCounts(fe.stats);
+        cs.addSizes(fe.stats);
+      }
+    }
+  }
+
+  /**
+   * Replace our size stats with those collected into another table,
+   * resetting the agents that it lacks.
+   */
+  void setSizes(AgentsTable from) {
+    Entry[] t;
+    synchronized (this) {
+      t = table.clone();
+    }
+    for (int i = 0; i < t.length; i++) {
+      Entry e = t[i];
+      if (e == null) {
+        continue;
+      }
+      ClassStats cs = (from == null ? null : from.get(e.name));
+      if (cs == null) {
+        e.stats.reset();
+      } else {
+        e.stats.setSizes(cs);
+      }
+    }
+  }
+
+  private static int find(Entry[] t, String agent) {
+    int mask = t.length - 1;
+    int i = (agent.hashCode() * 0x9E3779B9 >>> 16) & mask;
+    while (true) {
+      Entry e = t[i];
+      if (e == null || agent.equals(e.name)) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  // add an entry, which the caller synchronizes
+  private void insert(Entry e) {
+    Entry[] t = table;
+    if ((count + 1) * 2 > t.length) {
+      // build the resized table before we publish it
+      Entry[] new_t = new Entry[t.length << 1];
+      for (int i = 0; i < t.length; i++) {
+        if (t[i] != null) {
+          new_t[find(new_t, t[i].name)] = t[i];
+        }
+      }
+      new_t[find(new_t, e.name)] = e;
+      table = new_t;
+    } else {
+      t[find(t, e.name)] = e;
+    }
+    count++;
+  }
+
+  /**
+   * An agent's stats and linked list of live instances, which is
+   * guarded by the entry's lock.
+   */
+  static final class Entry {
+    final String name;
+    final ClassStats stats;
+    private InstanceStats.WithTimeStackContext head;
+    private int size;
+
+    Entry(String name, ClassStats stats) {
+      this.name = name;
+      this.stats = stats;
+    }
+
+    synchronized void add(InstanceStats.WithTimeStackContext is) {
+      is.agent = this;
+      is.agent_next = head;
+      if (head != null) {
+        head.agent_prev = is;
+      }
+      head = is;
+      size++;
+      stats.allocate(is);
+    }
+
+    synchronized void remove(InstanceStats.WithTimeStackContext is) {
+      if (is.agent != this) {
+        return;
+      }
+      InstanceStats.WithTimeStackContext prev = is.agent_prev;
+      InstanceStats.WithTimeStackContext next = is.agent_next;
+      if (prev == null) {
+        head = next;
+      } else {
+        prev.agent_next = next;
+      }
+      if (next != null) {
+        next.agent_prev = prev;
+      }
+      is.agent = null;
+      is.agent_prev = null;
+      is.agent_next = null;
+      size--;
+      stats.gc(is);
+    }
+
+    /** @return the instances that have not been gc'ed */
+    synchronized InstanceStats[] getInstances() {
+      InstanceStats[] ret = new InstanceStats[size];
+      int n = 0;
+      for (InstanceStats.WithTimeStackContext is = head;
+           is != null;
+           is = is.agent_next) {
+        if (is.get() != null) {
+          ret[n++] = is;
+        }
+      }
+      if (n != ret.length) {
+        InstanceStats[] old = ret;
+        ret = new InstanceStats[n];
+        System.arraycopy(old, 0, ret, 0, n);
+      }
+      return ret;
     }
   }
 }
@@ -0,0 +1,145 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Per-thread buffer of new InstanceStats, which are drained into
+ * their ClassTrackers in bulk.
+ * <p>
+ * Enabled by a non-zero Configure.BUFFER_SIZE.
+ */
+final class AllocationBuffer {
+
+  private static final ThreadLocal buffers = new ThreadLocal();
+
+  // all buffers, for "drainAll()"
+  private static final Object lock = new Object();
+  private static AllocationBuffer[] all;
+  private static int count;
+
+  private final WeakReference thread;
+
+  // parallel arrays of (tracker, instance) pairs
+  private final ClassTracker[] trackers;
+  private final InstanceStats[] stats;
+  private int size;
+
+  private AllocationBuffer(Thread t, int capacity) {
+    this.thread = new WeakReference(t);
+    this.trackers = new ClassTracker[capacity];
+    this.stats = new InstanceStats[capacity];
+  }
+
+  /** buffer an instance, drain if the buffer is full */
+  static void add(ClassTracker ct, InstanceStats is) {
+    AllocationBuffer b = (AllocationBuffer) buffers.get();
+    if (b == null) {
+      b = new AllocationBuffer(
+          Thread.currentThread(), Configure.BUFFER_SIZE);
+      buffers.set(b);
+      register(b);
+    }
+    b.append(ct, is);
+  }
+
+  /** drain all threads' buffers */
+  static void drainAll() {
+    AllocationBuffer[] a;
+    int n;
+    synchronized (lock) {
+      n = count;
+      if (n == 0) {
+        return;
+      }
+      a = new AllocationBuffer[n];
+      System.arraycopy(all, 0, a, 0, n);
+    }
+    boolean prune = false;
+    for (int i = 0; i < n; i++) {
+      AllocationBuffer b = a[i];
+      b.drain();
+      if (b.thread.get() == null) {
+        prune = true;
+      }
+    }
+    if (prune) {
+      unregisterDeadThreads();
+    }
+  }
+
+  private static void register(AllocationBuffer b) {
+    synchronized (lock) {
+      if (all == null) {
+        all = new AllocationBuffer[17];
+      } else if (count >= all.length) {
+        AllocationBuffer[] old = all;
+        all = new AllocationBuffer[2 * count];
+        System.arraycopy(old, 0, all, 0, count);
+      }
+      all[count++] = b;
+    }
+  }
+
+  private static void unregisterDeadThreads() {
+    // the thread is gone, so its buffer won't be appended to again
+    synchronized (lock) {
+      int j = 0;
+      for (int i = 0; i < count; i++) {
+        AllocationBuffer b = all[i];
+        if (b.thread.get() == null && b.isEmpty()) {
+          continue;
+        }
+        all[j++] = b;
+      }
+      for (int i = j; i < count; i++) {
+        all[i] = null;
+      }
+      count = j;
+    }
+  }
+
+  private synchronized boolean isEmpty() {
+    return (size == 0);
+  }
+
+  private synchronized void append(ClassTracker ct, InstanceStats is) {
+    trackers[size] = ct;
+    stats[size] = is;
+    if (++size >= trackers.length) {
+      drain();
+    }
+  }
+
+  private synchronized void drain() {
+    // group the entries by tracker, so each tracker is locked
+    // once per drain instead of once per instance.  The tracker
+    // nulls out the entries it puts.
+    for (int i = 0; i < size; i++) {
+      ClassTracker ct = trackers[i];
+      if (ct != null) {
+        ct.putAll(trackers, stats, i, size);
+      }
+    }
+    size = 0;
+  }
+}
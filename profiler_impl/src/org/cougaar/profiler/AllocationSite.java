@@ -0,0 +1,123 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * An interned allocation stacktrace, which is shared by all
+ * instances allocated at the same site.
+ * <p>
+ * The site only keeps the ids of its frames, which are resolved to
+ * StackTraceElements on first use.  The profiler's own frames are
+ * excluded from the stack.
+ *
+ * @see AllocationSites
+ * @see Groupings#STACK_GROUP
+ */
+public final class AllocationSite {
+
+  private final int id;
+  private final int[] frames;
+  private StackTraceElement[] elements;
+  private volatile LifetimeHistogram lifetimes;
+
+  AllocationSite(int id, int[] frames) {
+    this.id = id;
+    this.frames = frames;
+  }
+
+  /** @return the unique site id */
+  public int getId() {
+    return id;
+  }
+
+  /** @return the number of frames in the stack */
+  public int getDepth() {
+    return frames.length;
+  }
+
+  /** @return a copy of the stack, allocation point first */
+  public StackTraceElement[] getStackTrace() {
+    StackTraceElement[] ret = elements;
+    if (ret == null) {
+      int n = frames.length;
+      ret = new StackTraceElement[n];
+      for (int i = 0; i < n; i++) {
+        ret[i] = AllocationSites.getFrame(frames[i]);
+      }
+      elements = ret;
+    }
+    return ret.clone();
+  }
+
+  /** @return a new Throwable with this site's stack */
+  public Throwable toThrowable() {
+    Throwable t = new Throwable("allocation site "+id);
+    t.setStackTrace(getStackTrace());
+    return t;
+  }
+
+  /**
+   * @return the ages of gc'ed instances allocated at this site, or
+   * null if none were timed
+   */
+  public LifetimeHistogram getLifetimes() {
+    return lifetimes;
+  }
+
+  // for use by ClassStats
+  LifetimeHistogram getOrCreateLifetimes() {
+    LifetimeHistogram ret = lifetimes;
+    if (ret == null) {
+      synchronized (this) {
+        ret = lifetimes;
+        if (ret == null) {
+          ret = new LifetimeHistogram();
+          lifetimes = ret;
+        }
+      }
+    }
+    return ret;
+  }
+
+  // package-private for use by AllocationSites
+  int[] getFrameIds() {
+    return frames;
+  }
+
+  public int hashCode() {
+    return id;
+  }
+
+  public boolean equals(Object o) {
+    // sites are interned
+    return (o == this);
+  }
+
+  public String toString() {
+    StackTraceElement[] st = getStackTrace();
+    return
+      "(site"+
+      " id="+id+
+      " depth="+st.length+
+      (st.length > 0 ? " at="+st[0] : "")+
+      ")";
+  }
+}
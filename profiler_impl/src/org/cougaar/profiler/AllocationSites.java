@@ -0,0 +1,525 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * VM-wide table of interned allocation stacktraces.
+ * <p>
+ * An instance allocated with stack capture enabled walks at most
+ * MAX_STACK_DEPTH frames of its caller's stack, excluding the
+ * profiler's frames.  The frames are interned as frame ids and the
+ * array of frame ids is interned as a site, so identical allocation
+ * paths share one AllocationSite and the instance only keeps the
+ * site's int id.
+ * <p>
+ * Lookups of known frames and sites don't lock, since the tables
+ * are only appended to and the interned frames and sites are
+ * immutable.  New entries are added while holding our lock.
+ * <p>
+ * Classes transformed with "SelfProfiler --sites=true" register
+ * their "new" sites once, in their class init, as a block of sites
+ * with a single frame each.  Just before each constructor call the
+ * site id is pushed onto a small per-thread ring by
+ * "setPending(id)".  When the constructed instance is tracked with
+ * stacks, "takePending(obj)" pops the most recent pending site of
+ * the instance's type, so the instance is given the named site and
+ * its stack is never captured.  See
+ * "MemoryTracker.setAllocationSite(..)".
+ * <p>
+ * We use our own array-based tables instead of "java.util" maps,
+ * since we may be profiling "java.util".
+ */
+public final class AllocationSites {
+
+  private AllocationSites() { }
+
+  // frames and sites whose class starts with this prefix are
+  // excluded from the captured stack
+  private static final String PROFILER_PACKAGE = "org.cougaar.profiler.";
+  private static final String PROFILE_METHOD_PREFIX = "$profile_";
+
+  // size of the per-thread pending ring, which must be a power of
+  // two.  This bounds the nesting of "new"s in constructors that
+  // we can name.
+  private static final int MAX_PENDING = 8;
+
+  private static final Object lock = new Object();
+
+  // frame id to element, plus an open-addressed index of (id + 1).
+  //
+  // The arrays are read without the lock, so an element is set
+  // before its index slot, and a grown array is filled before it's
+  // published.  A reader that sees an unset element treats it as a
+  // miss and retries with the lock.
+  private static volatile StackTraceElement[] frames;
+  private static int frameCount;
+  private static volatile int[] frameIndex;
+
+  // site id to site, plus an open-addressed index of (id + 1) by
+  // frames.  Registered sites are not indexed.
+  private static volatile AllocationSite[] sites;
+  // site id to the type that a registered site constructs, or null
+  // for a captured stack
+  private static volatile String[] types;
+  private static int siteCount;
+  private static volatile int[] siteIndex;
+
+  // true once a transformed class has registered its sites
+  private static volatile boolean naming;
+
+  // the current thread's Pending ring, created by "setPending"
+  private static final ThreadLocal pending = new ThreadLocal();
+
+  // walks the caller's stack for "capture()", which doesn't need
+  // the frames' classes
+  private static final StackWalker walker = StackWalker.getInstance();
+
+  // collects up to MAX_STACK_DEPTH frames below the profiler's
+  // frames.  The frames are pulled one at a time from the stream's
+  // spliterator, so deeper frames aren't walked and no iterator is
+  // allocated.
+  private static final class Collector implements Function, Consumer {
+    private final StackTraceElement[] st =
+      new StackTraceElement[Configure.MAX_STACK_DEPTH];
+    private int n;
+    public Object apply(Object stream) {
+      Spliterator sp = ((Stream) stream).spliterator();
+      while (n < st.length && sp.tryAdvance(this)) {
+      }
+      if (n == st.length) {
+        return st;
+      }
+      StackTraceElement[] ret = new StackTraceElement[n];
+      System.arraycopy(st, 0, ret, 0, n);
+      return ret;
+    }
+    public void accept(Object o) {
+      StackWalker.StackFrame f = (StackWalker.StackFrame) o;
+      if (n == 0 &&
+          isProfilerFrame(f.getClassName(), f.getMethodName())) {
+        return;
+      }
+      st[n++] = f.toStackTraceElement();
+    }
+  }
+
+  /** @return the number of interned sites */
+  public static int getSiteCount() {
+    synchronized (lock) {
+      return siteCount;
+    }
+  }
+
+  /**
+   * @return the estimated bytes of the interned stacks and their
+   * indices, which are shared by all ClassTrackers
+   */
+  public static long getBytes() {
+    synchronized (lock) {
+      long ret = 0;
+      if (frames != null) {
+        // the element's strings are usually shared with the VM's
+        // constant pools, so we only count the element itself
+        ret += 4L * frames.length + 32L * frameCount;
+      }
+      if (frameIndex != null) {
+        ret += 4L * frameIndex.length;
+      }
+      if (sites != null) {
+        ret += 8L * sites.length;
+        for (int i = 0; i < siteCount; i++) {
+          // the site plus its array of frame ids
+          ret += 32 + 16 + 4L * sites[i].getDepth();
+        }
+      }
+      if (siteIndex != null) {
+        ret += 4L * siteIndex.length;
+      }
+      return ret;
+    }
+  }
+
+  /** @return the site with the given id, or null */
+  public static AllocationSite getSite(int id) {
+    AllocationSite[] a = sites;
+    return ((a != null && id >= 0 && id < a.length) ? a[id] : null);
+  }
+
+  static StackTraceElement getFrame(int id) {
+    return frames[id];
+  }
+
+  /**
+   * Register a transformed class's "new" sites.
+   *
+   * @param keys the transform-time sites, each
+   *   "CLASS|METHOD|FILE|LINE|BCI|TYPE"
+   * @return the id of the first site, where the others follow in
+   *   order
+   * @see MemoryTracker#registerAllocationSites
+   */
+  static int register(String[] keys) {
+    synchronized (lock) {
+      int base = siteCount;
+      // we don't merge these with equal sites, since the bytecode
+      // index may distinguish sites on the same line
+      for (int i = 0; i < keys.length; i++) {
+        String[] fields = split(keys[i]);
+        int[] ids = new int[] { internFrame(parseKey(fields)) };
+        addSite(ids, fields[5]);
+      }
+      naming = true;
+      return base;
+    }
+  }
+
+  /** @return true if "takePending(obj)" may find a site */
+  static boolean isNaming() {
+    return naming;
+  }
+
+  /**
+   * Note that the current thread is about to call the constructor
+   * of a registered site.
+   *
+   * @see MemoryTracker#setAllocationSite
+   */
+  static void setPending(int id) {
+    Pending p = (Pending) pending.get();
+    if (p == null) {
+      p = new Pending();
+      pending.set(p);
+    }
+    p.push(id);
+  }
+
+  /**
+   * Take the pending site of a new instance, which the transformed
+   * caller set just before the instance's constructor ran.
+   *
+   * @return the site id, or -1 if none is pending for the
+   *   instance's type
+   */
+  static int takePending(Object obj) {
+    Pending p = (Pending) pending.get();
+    if (p == null || p.count == 0) {
+      return -1;
+    }
+    return p.pop(obj.getClass().getName(), types);
+  }
+
+  /**
+   * Capture the current stack, excluding the profiler's frames, and
+   * intern it.
+   * <p>
+   * This only locks if the stack has a new frame or is a new site.
+   *
+   * @return the site id
+   */
+  static int capture() {
+    StackTraceElement[] st = (StackTraceElement[]) walker.walk(new Collector());
+    int depth = st.length;
+    int[] ids = new int[depth];
+    boolean known = true;
+    for (int i = 0; i < depth && known; i++) {
+      ids[i] = findFrame(st[i]);
+      known = (ids[i] >= 0);
+    }
+    if (known) {
+      AllocationSite site = findSite(ids);
+      if (site != null) {
+        return site.getId();
+      }
+    }
+    synchronized (lock) {
+      for (int i = 0; i < depth; i++) {
+        ids[i] = internFrame(st[i]);
+      }
+      return internSite(ids);
+    }
+  }
+
+  private static boolean isProfilerFrame(String cl, String method) {
+    // e.g.
+    //   org.cougaar.profiler.ClassTracker.add
+    //   java.util.HashMap.$profile_java_util_HashMap
+    return
+      cl.startsWith(PROFILER_PACKAGE) ||
+      method.startsWith(PROFILE_METHOD_PREFIX);
+  }
+
+  // lock-free lookups, which return -1 or null if not found
+
+  private static int findFrame(StackTraceElement e) {
+    // read the index first, since the elements are published first
+    int[] index = frameIndex;
+    if (index == null) {
+      return -1;
+    }
+    StackTraceElement[] a = frames;
+    int mask = index.length - 1;
+    int i = mix(e.hashCode()) & mask;
+    while (true) {
+      int j = index[i] - 1;
+      if (j < 0 || j >= a.length || a[j] == null) {
+        return -1;
+      }
+      if (a[j].equals(e)) {
+        return j;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  private static AllocationSite findSite(int[] ids) {
+    int[] index = siteIndex;
+    if (index == null) {
+      return null;
+    }
+    AllocationSite[] a = sites;
+    int mask = index.length - 1;
+    int i = hash(ids, ids.length) & mask;
+    while (true) {
+      int j = index[i] - 1;
+      if (j < 0 || j >= a.length || a[j] == null) {
+        return null;
+      }
+      if (equals(a[j].getFrameIds(), ids, ids.length)) {
+        return a[j];
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  // the following must be called while holding the lock
+
+  private static int internFrame(StackTraceElement e) {
+    if (frameIndex == null) {
+      frames = new StackTraceElement[64];
+      frameIndex = new int[128];
+    }
+    StackTraceElement[] a = frames;
+    int[] index = frameIndex;
+    int mask = index.length - 1;
+    int i = mix(e.hashCode()) & mask;
+    while (true) {
+      int j = index[i] - 1;
+      if (j < 0) {
+        break;
+      }
+      if (a[j].equals(e)) {
+        return j;
+      }
+      i = (i + 1) & mask;
+    }
+    // add
+    int id = frameCount++;
+    if (id >= a.length) {
+      StackTraceElement[] old = a;
+      a = new StackTraceElement[2 * old.length];
+      System.arraycopy(old, 0, a, 0, id);
+    }
+    a[id] = e;
+    // publish the grown array before the index slot
+    frames = a;
+    index[i] = id + 1;
+    if (2 * frameCount > index.length) {
+      frameIndex = reindex(index, FRAMES);
+    }
+    return id;
+  }
+
+  private static int internSite(int[] ids) {
+    if (siteIndex == null) {
+      siteIndex = new int[128];
+    }
+    int[] index = siteIndex;
+    int mask = index.length - 1;
+    int i = hash(ids, ids.length) & mask;
+    while (true) {
+      int j = index[i] - 1;
+      if (j < 0) {
+        break;
+      }
+      if (equals(sites[j].getFrameIds(), ids, ids.length)) {
+        return j;
+      }
+      i = (i + 1) & mask;
+    }
+    // add, where the site keeps our caller's array
+    int id = addSite(ids, null);
+    index[i] = id + 1;
+    if (2 * siteCount > index.length) {
+      siteIndex = reindex(index, SITES);
+    }
+    return id;
+  }
+
+  private static String[] split(String key) {
+    // split the SelfProfiler's:
+    //   CLASS|METHOD|FILE|LINE|BCI|TYPE
+    // into its six fields, where a malformed key leaves the missing
+    // fields empty
+    String[] ret = new String[6];
+    int i = 0;
+    for (int k = 0; k < 6; k++) {
+      int j = (k < 5 ? key.indexOf('|', i) : -1);
+      if (i > key.length()) {
+        ret[k] = "";
+      } else if (j < 0) {
+        ret[k] = key.substring(i);
+        i = key.length() + 1;
+      } else {
+        ret[k] = key.substring(i, j);
+        i = j + 1;
+      }
+    }
+    return ret;
+  }
+
+  private static StackTraceElement parseKey(String[] fields) {
+    // the FILE may be empty and the LINE may be -1
+    String file = fields[2];
+    int line;
+    try {
+      line = Integer.parseInt(fields[3]);
+    } catch (NumberFormatException nfe) {
+      line = -1;
+    }
+    return new StackTraceElement(
+        (fields[0].length() == 0 ? "?" : fields[0]),
+        fields[1],
+        (file.length() == 0 ? null : file),
+        line);
+  }
+
+  private static int addSite(int[] ids, String type) {
+    AllocationSite[] a = sites;
+    String[] t = types;
+    if (a == null) {
+      a = new AllocationSite[64];
+      t = new String[64];
+    }
+    int id = siteCount++;
+    if (id >= a.length) {
+      AllocationSite[] old = a;
+      a = new AllocationSite[2 * old.length];
+      System.arraycopy(old, 0, a, 0, id);
+      String[] old_t = t;
+      t = new String[a.length];
+      System.arraycopy(old_t, 0, t, 0, id);
+    }
+    a[id] = new AllocationSite(id, ids);
+    t[id] = type;
+    // publish the grown arrays before the caller's index slot
+    types = t;
+    sites = a;
+    return id;
+  }
+
+  private static final int FRAMES = 0;
+  private static final int SITES = 1;
+
+  private static int[] reindex(int[] index, int kind) {
+    // double the index, rehash entries by their frame or site hash
+    int[] ret = new int[2 * index.length];
+    int mask = ret.length - 1;
+    for (int k = 0; k < index.length; k++) {
+      int id = index[k] - 1;
+      if (id < 0) {
+        continue;
+      }
+      int h;
+      if (kind == FRAMES) {
+        h = mix(frames[id].hashCode());
+      } else {
+        int[] ids = sites[id].getFrameIds();
+        h = hash(ids, ids.length);
+      }
+      int i = h & mask;
+      while (ret[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      ret[i] = id + 1;
+    }
+    return ret;
+  }
+
+  private static int hash(int[] ids, int depth) {
+    int h = depth;
+    for (int i = 0; i < depth; i++) {
+      h = 31*h + ids[i];
+    }
+    return mix(h);
+  }
+
+  private static int mix(int h) {
+    // spread the low bits, since we mask by the table length
+    h ^= (h >>> 20) ^ (h >>> 12);
+    return h ^ (h >>> 7) ^ (h >>> 4);
+  }
+
+  private static boolean equals(int[] a, int[] b, int depth) {
+    if (a.length != depth) {
+      return false;
+    }
+    for (int i = 0; i < depth; i++) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // a thread's ring of pending site ids, most recent last
+  private static final class Pending {
+    private final int[] ids = new int[MAX_PENDING];
+    private int top;
+    private int count;
+
+    void push(int id) {
+      ids[top++ & (MAX_PENDING - 1)] = id;
+      if (count < MAX_PENDING) {
+        count++;
+      }
+    }
+
+    int pop(String type, String[] types) {
+      // find the most recent site of this type, then pop it and the
+      // entries above it, whose constructors have returned without
+      // taking them, e.g. an unprofiled or sampled-out instance
+      for (int k = 0; k < count; k++) {
+        int id = ids[(top - 1 - k) & (MAX_PENDING - 1)];
+        if (id < types.length && type.equals(types[id])) {
+          top -= (k + 1);
+          count -= (k + 1);
+          return id;
+        }
+      }
+      return -1;
+    }
+  }
+}
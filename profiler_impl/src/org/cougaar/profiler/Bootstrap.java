@@ -0,0 +1,259 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * The MemoryStats returned during the DELAY_AFTER_STARTUP, which
+ * records the early tracker registrations and allocations and replays
+ * them into the real MemoryStats once it can be resolved.
+ * <p>
+ * During the delay we can't find the classloader-safe singleton, so
+ * the trackers returned by "getMemoryTracker" buffer their "add(obj)"
+ * calls in a preallocated array.  The first call after the delay
+ * resolves the real MemoryStats, points each buffered tracker at the
+ * real tracker for its class, and replays the buffered objects.  From
+ * then on a buffered tracker forwards each "add(obj)" after a single
+ * volatile read.
+ * <p>
+ * The buffer holds strong references, so startup objects aren't
+ * gc'ed until the replay.  Replayed instances keep their buffered
+ * allocation time but have no allocation site.  Allocations past
+ * BOOTSTRAP_BUFFER_SIZE, and registrations past BOOTSTRAP_CLASSES,
+ * are dropped, and the dropped allocations are counted by
+ * "getStartupDropped()".
+ */
+final class Bootstrap implements MemoryStats {
+
+  private final long startTime;
+
+  // buffered registrations and allocations, guarded by "this"
+  private final Tracker[] trackers =
+    new Tracker[Configure.BOOTSTRAP_CLASSES];
+  private int num_trackers;
+  private final Object[] objs =
+    new Object[Configure.BOOTSTRAP_BUFFER_SIZE];
+  private final Tracker[] owners =
+    new Tracker[Configure.BOOTSTRAP_BUFFER_SIZE];
+  private final long[] times =
+    new long[Configure.BOOTSTRAP_BUFFER_SIZE];
+  private int num_objs;
+  private int dropped;
+
+  // the resolved MemoryStats, set by "replay"
+  private volatile MemoryStats real;
+
+  Bootstrap(long startTime) {
+    this.startTime = startTime;
+  }
+
+  public String[] getClassNames() {
+    return getStats().getClassNames();
+  }
+
+  public ClassTracker getClassTracker(String classname) {
+    return getStats().getClassTracker(classname);
+  }
+
+  public void updateAll(int parallelism) {
+    getStats().updateAll(parallelism);
+  }
+
+  public LeakSuspect[] getLeakSuspects(int max) {
+    return getStats().getLeakSuspects(max);
+  }
+
+  public Snapshot snapshot() {
+    return getStats().snapshot();
+  }
+
+  public int setOptions(String pattern, Options options) {
+    return getStats().setOptions(pattern, options);
+  }
+
+  public String getGovernorStatus() {
+    return getStats().getGovernorStatus();
+  }
+
+  public SelfMetrics[] getSelfMetrics() {
+    return getStats().getSelfMetrics();
+  }
+
+  public long getAllocationSiteBytes() {
+    return getStats().getAllocationSiteBytes();
+  }
+
+  public int getStartupDropped() {
+    MemoryStats ms = resolve();
+    if (ms != null) {
+      return ms.getStartupDropped();
+    }
+    synchronized (this) {
+      return dropped;
+    }
+  }
+
+  public MemoryTracker getMemoryTracker(
+      String classname,
+      int bytesEach,
+      Options options) {
+    MemoryStats ms = resolve();
+    if (ms != null) {
+      return ms.getMemoryTracker(classname, bytesEach, options);
+    }
+    if (options == null) {
+      return null;
+    }
+    synchronized (this) {
+      if (real != null) {
+        return real.getMemoryTracker(classname, bytesEach, options);
+      }
+      // find, which is a linear scan but only during the delay
+      for (int i = 0; i < num_trackers; i++) {
+        if (classname.equals(trackers[i].classname)) {
+          return trackers[i];
+        }
+      }
+      if (num_trackers >= trackers.length) {
+        return null;
+      }
+      Tracker t = new Tracker(this, classname, bytesEach, options);
+      trackers[num_trackers++] = t;
+      return t;
+    }
+  }
+
+  // for use by MemoryStatsImpl: resolve our trackers and replay the
+  // buffered allocations
+  void replay(MemoryStats ms) {
+    synchronized (this) {
+      // new registrations go directly to "ms"
+      real = ms;
+      for (int i = 0; i < num_trackers; i++) {
+        Tracker t = trackers[i];
+        MemoryTracker mt = null;
+        try {
+          mt = ms.getMemoryTracker(t.classname, t.bytes, t.options);
+        } catch (RuntimeException e) {
+          // e.g. a proxy's tracker from another classloader
+        }
+        t.delegate = (mt == null ? MemoryTracker.NULL : mt);
+        trackers[i] = null;
+      }
+      num_trackers = 0;
+      for (int i = 0; i < num_objs; i++) {
+        Object o = objs[i];
+        objs[i] = null;
+        Tracker t = owners[i];
+        owners[i] = null;
+        MemoryTracker d = t.delegate;
+        if (d instanceof ClassTracker) {
+          ((ClassTracker) d).addReplayed(o, times[i]);
+        } else {
+          d.add(o);
+        }
+      }
+      num_objs = 0;
+      if (dropped > 0) {
+        System.err.println(
+            "MemoryStats dropped "+dropped+
+            " allocations during the startup delay, consider"+
+            " increasing BOOTSTRAP_BUFFER_SIZE");
+      }
+    }
+  }
+
+  // for use by MemoryStatsImpl after "replay"
+  synchronized int getDropped() {
+    return dropped;
+  }
+
+  private void add(Tracker t, Object o) {
+    resolve();
+    MemoryTracker d = t.delegate;
+    if (d == null) {
+      synchronized (this) {
+        d = t.delegate;
+        if (d == null) {
+          if (num_objs < objs.length) {
+            objs[num_objs] = o;
+            owners[num_objs] = t;
+            times[num_objs] = System.currentTimeMillis();
+            num_objs++;
+          } else {
+            dropped++;
+          }
+          return;
+        }
+      }
+    }
+    d.add(o);
+  }
+
+  // return the real MemoryStats if the delay has passed, otherwise
+  // null
+  private MemoryStats resolve() {
+    MemoryStats ms = real;
+    if (ms == null &&
+        (System.currentTimeMillis() - startTime) >=
+        Configure.DELAY_AFTER_STARTUP) {
+      // this calls our "replay", unless a parent classloader's
+      // copy is still in its own delay
+      ms = MemoryStatsImpl.getInstance();
+      if (ms == this) {
+        ms = null;
+      }
+    }
+    return ms;
+  }
+
+  private MemoryStats getStats() {
+    MemoryStats ms = resolve();
+    // during the delay we assume we're the root classloader, as
+    // MemoryStatsImpl used to
+    return (ms == null ? new MemoryStatsImpl() : ms);
+  }
+
+  /** a tracker returned during the delay */
+  private static final class Tracker extends MemoryTracker {
+    private final Bootstrap b;
+    final String classname;
+    final int bytes;
+    final Options options;
+    // the real tracker, set by "replay"
+    volatile MemoryTracker delegate;
+
+    Tracker(Bootstrap b, String classname, int bytes, Options options) {
+      this.b = b;
+      this.classname = classname;
+      this.bytes = bytes;
+      this.options = options;
+    }
+
+    public void add(Object o) {
+      MemoryTracker d = delegate;
+      if (d != null) {
+        d.add(o);
+      } else {
+        b.add(this, o);
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * An InstancesTable that chains entries through their
+ * "InstanceStats.next" field.
+ */
+abstract class ChainedInstancesTable extends InstancesTable {
+
+  // we keep something similar to an IdentityHashMap, but we don't
+  // actually hash.  The caller guarantees that there will only be
+  // one "add(obj)" per instance.
+  //
+  // We could keep a simple linked list, but we want to periodically
+  // poll the list to trim out gc'ed entries.  Scanning the entire
+  // list could be slow.
+  //
+  // Here we keep a simple array of lists, keyed by identity
+  // hashcode.  Each InstanceStats is registered with its
+  // ClassTracker's ReferenceQueue, so when an instance is gc'ed the
+  // tracker calls "remove(is)", which only scans that entry's
+  // bucket.  The iterator and resize also unlink any gc'ed entries
+  // that haven't been dequeued yet, so "remove(is)" may find
+  // that the entry is already gone.
+  private InstanceStats[] objs;
+  private int objs_size;
+  private int objs_threshold;
+  private int resizes;
+
+  // cheap iterator:
+  private int iter_i;
+  private int iter_max;
+  private InstanceStats iter_next;
+  private InstanceStats iter_prev;
+
+  public ChainedInstancesTable() {
+  }
+
+  public final int size() {
+    return objs_size;
+  }
+
+  public final int capacity() {
+    return (objs == null ? 0 : objs.length);
+  }
+
+  public final int getResizeCount() {
+    return resizes;
+  }
+
+  public final void sweep(int from, int to, Visitor v) {
+    if (objs == null) {
+      return;
+    }
+    int max = Math.min(to, objs.length);
+    for (int i = from; i < max; i++) {
+      InstanceStats prev = null;
+      InstanceStats is = objs[i];
+      while (is != null) {
+        InstanceStats next = is.next;
+        if (is.get() == null) {
+          // gc'ed
+          if (prev == null) {
+            objs[i] = next;
+          } else {
+            prev.next = next;
+          }
+          is.next = null;
+          gc(is);
+          objs_size--;
+        } else {
+          v.visit(is);
+          prev = is;
+        }
+        is = next;
+      }
+    }
+  }
+
+  public final void startIterator() {
+    iter_i = -1;
+    iter_max = (objs == null ? 0 : objs.length);
+    iter_next = null;
+    iter_prev = null;
+  }
+  public final InstanceStats next() {
+    while (true) {
+      if (iter_next == null) {
+        iter_prev = null;
+        if (++iter_i >= iter_max) {
+          return null;
+        }
+        iter_next = objs[iter_i]; 
+        continue;
+      }
+      if (iter_next.get() == null) {
+        // gc'ed
+        gc(iter_next);
+        objs_size--;
+        InstanceStats dead = iter_next;
+        iter_next = dead.next;
+        dead.next = null;
+        if (iter_prev == null) {
+          objs[iter_i] = iter_next;
+        } else {
+          iter_prev.next = iter_next;
+        }
+        continue;
+      }
+      InstanceStats ret = iter_next;
+      iter_prev = ret;
+      iter_next = ret.next;
+      return ret;
+    }
+  }
+
+  private static final int hash(InstanceStats is, int length) {
+    // assert (length % 2 == 0)
+    return is.hash & (length-1);
+  }
+
+  private final void resize() {
+    // length must be power of two for fast "&" hashing,
+    // otherwise we would use "%"
+    InstanceStats[] oldTable = objs;
+    resizes++;
+    if (oldTable == null) {
+      objs = new InstanceStats[8];
+      objs_threshold = objs.length * Configure.REHASH_FACTOR;
+      return;
+    }
+    int oldCapacity = oldTable.length;
+
+    int newCapacity = (oldCapacity << 1);
+    InstanceStats[] newTable = new InstanceStats[newCapacity];
+
+    for (int i = 0; i < oldCapacity; i++) {
+      InstanceStats next = null;
+      for (InstanceStats is = oldTable[i];
+          is != null;
+          is = next) {
+        next = is.next;
+        is.next = null;
+        Object o = is.get();
+        if (o == null) {
+          gc(is);
+          objs_size--;
+          continue;
+        }
+        int h = hash(is, newCapacity);
+        InstanceStats new_is = newTable[h];
+        if (new_is != null) {
+          is.next = new_is;
+        }
+        newTable[h] = is;
+      }
+    }
+    objs = newTable;
+    objs_threshold = newCapacity * Configure.REHASH_FACTOR;
+  }
+
+  public final void put(InstanceStats new_is) {
+    if (objs == null) {
+      resize();
+    }
+    int h = hash(new_is, objs.length);
+    // assume this is new and insert at the head
+    new_is.next = objs[h];
+    objs[h] = new_is;
+    allocate(new_is);
+    objs_size++;
+    if (objs_size >= objs_threshold) {
+      // resize, scan for gc'ed entries
+      resize();
+    }
+  }
+
+  public final boolean remove(InstanceStats dead) {
+    if (objs == null) {
+      return false;
+    }
+    int h = hash(dead, objs.length);
+    InstanceStats prev = null;
+    for (InstanceStats is = objs[h]; is != null; is = is.next) {
+      if (is == dead) {
+        if (prev == null) {
+          objs[h] = is.next;
+        } else {
+          prev.next = is.next;
+        }
+        is.next = null;
+        gc(is);
+        objs_size--;
+        return true;
+      }
+      prev = is;
+    }
+    return false;
+  }
+}
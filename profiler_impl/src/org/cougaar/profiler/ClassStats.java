@@ -24,27 +24,75 @@ package org.cougaar.profiler;
  * Class data for objects of the same type.
  */
 public class ClassStats {
-  private long live;
-  private long dead;
 
-  private ClassStats() { }
+  // striped allocation/gc counters, so concurrent updates don't
+  // need a lock.  The live count is "allocated - dead".
+  private static final int ALLOCATED = 0;
+  private static final int DEAD = 1;
+  private static final int SCALED_ALLOCATED = 2;
+  private static final int SCALED_DEAD = 3;
+  private final Counters counters;
 
-  static final ClassStats newClassStats(boolean plusSize) {
+  // ages of gc'ed instances, created on the first timed gc
+  private volatile LifetimeHistogram lifetimes;
+
+  private ClassStats(int cells) {
+    counters = new Counters(4, cells);
+  }
+
+  /**
+   * @param cells the number of counter cells, which should be 1 if
+   * all updates are synchronized
+   */
+  static final ClassStats newClassStats(boolean plusSize, int cells) {
     if (plusSize) {
-      return new PlusSize();
+      return new PlusSize(cells);
     } else {
-      return new ClassStats();
+      return new ClassStats(cells);
     }
   }
 
   /** The number of live objects */
   public final long getInstances() {
-    return live;
+    // read the dead count first, so a concurrent allocate/gc can
+    // only make this larger, never negative
+    long dead = counters.get(DEAD);
+    return counters.get(ALLOCATED) - dead;
   }
 
   /** The number of objects that have been garbage collected. */
   public final long getGarbageCollected() {
-    return dead;
+    return counters.get(DEAD);
+  }
+
+  /**
+   * The number of live objects weighted by their
+   * "InstanceStats.getSampleWeight()", which is the same as
+   * "getInstances()" unless adaptive sampling is enabled.
+   * <p>
+   * Divide by the Options sample ratio to estimate the total.
+   */
+  public final long getScaledInstances() {
+    long scaled_dead = counters.get(SCALED_DEAD);
+    return counters.get(SCALED_ALLOCATED) - scaled_dead;
+  }
+
+  /** The weighted number of garbage collected objects. */
+  public final long getScaledGarbageCollected() {
+    return counters.get(SCALED_DEAD);
+  }
+
+  /**
+   * The ages of garbage collected objects, or null if none were
+   * timed.
+   */
+  public final LifetimeHistogram getLifetimes() {
+    return lifetimes;
+  }
+
+  // the number of tracked adds, for adaptive sampling
+  final long getAllocated() {
+    return counters.get(ALLOCATED);
   }
 
   /** The sum of all sizes of live objects. */
@@ -76,10 +124,18 @@ public class ClassStats {
 
   void reset() {
   }
+  // publish the size stats collected by a ClassTracker sweep
+  void setSizes(ClassStats from) {
+  }
+  // merge size stats that were collected in parallel
+  void addSizes(ClassStats from) {
+  }
+  // update the size stats, where the sums are weighted
   void update(
       long size,
       long capacityCount,
-      long capacityBytes) {
+      long capacityBytes,
+      int weight) {
   }
 
   // allocate/gc an instance.  We pass the instance stats to allow
@@ -89,30 +145,72 @@ public class ClassStats {
   // history and answer questions like:
   //   "How many of the objects allocated 10-5 minutes
   //    ago how been gc'ed?" 
-  // or we could calculate the life expectancy for each unique
-  // allocation stacktrace, etc.
+  //
+  // If the instance is timed then "gc" records its age in our
+  // lifetimes and its allocation site's lifetimes, which gives the
+  // life expectancy for each unique allocation stacktrace.
   final void allocate(InstanceStats is) {
-    live++;
+    int h = is.hash;
+    counters.add(h, ALLOCATED, 1);
+    counters.add(h, SCALED_ALLOCATED, is.getSampleWeight());
   }
   final void gc(InstanceStats is) {
-    live--;
-    dead++;
+    int h = is.hash;
+    int weight = is.getSampleWeight();
+    counters.add(h, DEAD, 1);
+    counters.add(h, SCALED_DEAD, weight);
+    long time = is.getAllocationTime();
+    if (time > 0) {
+      long age = System.currentTimeMillis() - time;
+      getOrCreateLifetimes().add(age, weight);
+      AllocationSite site = is.getAllocationSite();
+      if (site != null) {
+        site.getOrCreateLifetimes().add(age, weight);
+      }
+    }
   }
-  final void resetInstances() {
-    live = 0;
+  private LifetimeHistogram getOrCreateLifetimes() {
+    LifetimeHistogram ret = lifetimes;
+    if (ret == null) {
+      synchronized (this) {
+        ret = lifetimes;
+        if (ret == null) {
+          ret = new LifetimeHistogram();
+          lifetimes = ret;
+        }
+      }
+    }
+    return ret;
+  }
+  // merge counts that were collected in parallel
+  final void addCounts(ClassStats from) {
+    for (int i = ALLOCATED; i <= SCALED_DEAD; i++) {
+      counters.add(0, i, from.counters.get(i));
+    }
   }
 
   public String toString() {
+    long live = getInstances();
+    long dead = getGarbageCollected();
+    long scaled_live = getScaledInstances();
+    long scaled_dead = getScaledGarbageCollected();
     return
       "(stats"+
       " live="+live+
       " dead="+dead+
+      (scaled_live == live && scaled_dead == dead ? "" :
+       " scaled_live="+scaled_live+
+       " scaled_dead="+scaled_dead)+
       ")";
   }
 
   /** impl with additional size/capacity fields */
   private static class PlusSize extends ClassStats {
 
+    private PlusSize(int cells) {
+      super(cells);
+    }
+
     private long sumSize;
     private long maxSize;
     private long maxEverSize;
@@ -155,6 +253,38 @@ public class ClassStats {
       return maxEverCapacityBytes;
     }
 
+    void setSizes(ClassStats from) {
+      PlusSize ps = (PlusSize) from;
+      sumSize = ps.sumSize;
+      maxSize = ps.maxSize;
+      if (maxEverSize < ps.maxEverSize) {
+        maxEverSize = ps.maxEverSize;
+      }
+      sumCapacityCount = ps.sumCapacityCount;
+      maxCapacityCount = ps.maxCapacityCount;
+      if (maxEverCapacityCount < ps.maxEverCapacityCount) {
+        maxEverCapacityCount = ps.maxEverCapacityCount;
+      }
+      sumCapacityBytes = ps.sumCapacityBytes;
+      maxCapacityBytes = ps.maxCapacityBytes;
+      if (maxEverCapacityBytes < ps.maxEverCapacityBytes) {
+        maxEverCapacityBytes = ps.maxEverCapacityBytes;
+      }
+    }
+    void addSizes(ClassStats from) {
+      PlusSize ps = (PlusSize) from;
+      sumSize += ps.sumSize;
+      maxSize = Math.max(maxSize, ps.maxSize);
+      maxEverSize = Math.max(maxEverSize, ps.maxEverSize);
+      sumCapacityCount += ps.sumCapacityCount;
+      maxCapacityCount = Math.max(maxCapacityCount, ps.maxCapacityCount);
+      maxEverCapacityCount =
+        Math.max(maxEverCapacityCount, ps.maxEverCapacityCount);
+      sumCapacityBytes += ps.sumCapacityBytes;
+      maxCapacityBytes = Math.max(maxCapacityBytes, ps.maxCapacityBytes);
+      maxEverCapacityBytes =
+        Math.max(maxEverCapacityBytes, ps.maxEverCapacityBytes);
+    }
     void reset() {
       sumSize = 0;
       sumCapacityCount = 0;
@@ -166,22 +296,23 @@ public class ClassStats {
     void update(
         long size,
         long capacityCount,
-        long capacityBytes) {
-      sumSize += size;
+        long capacityBytes,
+        int weight) {
+      sumSize += size * weight;
       if (maxSize < size) {
         maxSize = size;
         if (maxEverSize < size) {
           maxEverSize = size;
         }
       }
-      sumCapacityCount += capacityCount;
+      sumCapacityCount += capacityCount * weight;
       if (maxCapacityCount < capacityCount) {
         maxCapacityCount = capacityCount;
         if (maxEverCapacityCount < capacityCount) {
           maxEverCapacityCount = capacityCount;
         }
       }
-      sumCapacityBytes += capacityBytes;
+      sumCapacityBytes += capacityBytes * weight;
       if (maxCapacityBytes < capacityBytes) {
         maxCapacityBytes = capacityBytes;
         if (maxEverCapacityBytes < capacityBytes) {
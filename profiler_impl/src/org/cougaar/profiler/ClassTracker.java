@@ -20,6 +20,8 @@
  */
 package org.cougaar.profiler;
 
+import java.lang.ref.ReferenceQueue;
+
 /**
  * Class data for objects of the same type.
  */
@@ -27,14 +29,82 @@ public class ClassTracker extends MemoryTracker {
 
   private final String classname;
   private final int bytes;
+  // the registered options, whose sample ratio is the base of the
+  // "scaled" counts
   private final Options options;
 
+  // the current options and sampler state, which "setOptions"
+  // replaces as a whole so "add(obj)" reads them with a single
+  // volatile read
+  private volatile Settings settings;
+
+  // the live/gc'ed counters are updated by all stripes without
+  // holding "lock", see Configure.COUNTER_CELLS
   protected final ClassStats overall_stats;
 
+  // guards the overall size/capacity stats.
+  //
+  // Lock order is "lock" then a stripe, so an update never blocks
+  // an "add(obj)" for longer than one stripe's iteration.
   private Object lock = new Object();
 
-  private InstancesTable objs;
-  protected AgentsTable agents;
+  // instance tables, each synchronized on its stripe.  See
+  // Configure.STRIPES.
+  private final Stripe[] stripes;
+
+  // our InstanceStats are registered with this queue, so we can
+  // count and unlink them as soon as they're gc'ed
+  private final ReferenceQueue queue = new ReferenceQueue();
+
+  // per-agent counts and instance lists, or null until contexts are
+  // enabled, see "newSettings"
+  private volatile AgentsTable agents;
+
+  // adaptive sampling shift, see Configure.ADAPTIVE_SAMPLE_BUDGET.
+  // The effective sample ratio is the current Options ratio /
+  // 2^shift.
+  private volatile int sample_shift;
+  // the tracked adds count and time at the last "timerAdapt"
+  private long adapt_count;
+  private long adapt_time;
+
+  // incremental sweep position and pending totals, only used by
+  // the Sweeper thread
+  private int sweep_stripe;
+  private int sweep_bucket;
+  private int sweep_resizes;
+  private Totals sweep_totals;
+  // the current stripe's totals, which are added to the pass's
+  // totals when the stripe is complete, and its restart count
+  private Totals stripe_totals;
+  private int stripe_restarts;
+  private InstancesTable.Visitor sweep_visitor;
+  // sweeps a slice of "sweep_slice" buckets, see "sweepStripe"
+  private StripeTask sweep_task;
+  private int sweep_slice;
+
+  // SelfMetrics sweep counters, only written by the Sweeper thread.
+  // The "pass_" counts are for the current partial pass.
+  private volatile long sweep_passes;
+  private volatile long sweep_nanos;
+  private volatile long last_sweep_nanos;
+  private volatile long sweep_reclaimed;
+  private volatile long last_sweep_reclaimed;
+  private long pass_nanos;
+  private long pass_reclaimed;
+
+  // SelfMetrics count of allocations skipped by the Sampler, or
+  // null if disabled
+  private final Counters sampled_out =
+    (Configure.SELF_METRICS ?
+     new Counters(1, Configure.COUNTER_CELLS) :
+     null);
+
+  // periodic samples, created on first use
+  private volatile History history;
+
+  // growth trend, guarded by the LeakDetector
+  private Trend trend;
 
   static ClassTracker newClassTracker(
       String classname,
@@ -43,17 +113,9 @@ public class ClassTracker extends MemoryTracker {
     boolean plus_size = 
       (options.isSizeEnabled() ||
        options.isCapacityEnabled());
-    boolean plus_sample = 
-      (options.getSampleRatio() < 1.0);
 
     if (plus_size) {
-      if (plus_sample) {
-        return new PlusSizeSample(classname, bytes, options);
-      } else {
-        return new PlusSize(classname, bytes, options);
-      }
-    } else if (plus_sample) {
-      return new PlusSample(classname, bytes, options);
+      return new PlusSize(classname, bytes, options);
     } else {
       return new ClassTracker(classname, bytes, options);
     }
@@ -63,7 +125,17 @@ public class ClassTracker extends MemoryTracker {
     this.classname = classname;
     this.bytes = bytes;
     this.options = options;
-    this.overall_stats = newClassStats();
+    this.settings = newSettings(options, null);
+    this.overall_stats = newClassStats(Configure.COUNTER_CELLS);
+    // "getStripe" masks the hash, so round up to a power of two
+    int n = 1;
+    while (n < Configure.STRIPES) {
+      n <<= 1;
+    }
+    this.stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new Stripe(this);
+    }
   }
 
   /** @return name of profiled class */
@@ -76,32 +148,203 @@ public class ClassTracker extends MemoryTracker {
     return bytes;
   }
 
-  /** @return profiling options */
+  /**
+   * @return the profiling options the class was registered with,
+   * whose sample ratio is the base of the "scaled" ClassStats counts
+   */
   public final Options getOptions() {
     return options;
   }
 
+  /**
+   * @return the current profiling options, which differ from
+   * "getOptions()" if they were changed by "setOptions" or the
+   * Governor
+   */
+  public final Options getCurrentOptions() {
+    return settings.options;
+  }
+
+  /**
+   * Change the profiling options of future allocations.
+   * <p>
+   * The sample ratio can't exceed the registered Options ratio, and
+   * is rounded down to the registered ratio divided by a power of
+   * two, so the "scaled" counts stay relative to the registered
+   * ratio.  Size and capacity stats are only collected if either was
+   * enabled at registration.
+   *
+   * @param o the new options, or null to restore the registered
+   * options
+   * @throws IllegalArgumentException if the sample ratio exceeds the
+   * registered ratio
+   */
+  public final void setOptions(Options o) {
+    if (o != null && o.getSampleRatio() > options.getSampleRatio()) {
+      throw new IllegalArgumentException(
+          "Sample ratio "+o.getSampleRatio()+
+          " exceeds the registered ratio "+options.getSampleRatio()+
+          " of "+classname);
+    }
+    synchronized (lock) {
+      settings = newSettings((o == null ? options : o), settings);
+    }
+  }
+
+  // for use by Governor: re-apply the shed level to our options
+  final void govern() {
+    synchronized (lock) {
+      settings = newSettings(settings.requested, settings);
+    }
+  }
+
+  /**
+   * @return the current sample ratio, which is less than the
+   * current Options sample ratio if adaptive sampling has lowered it
+   */
+  public final double getSampleRatio() {
+    return settings.options.getSampleRatio() / (1 << sample_shift);
+  }
+
   /** @return summary statistics */
   public final ClassStats getOverallStats() {
     return overall_stats;
   }
 
+  /**
+   * @return the periodic samples of our overall stats, or null if
+   * history is disabled or there were no instances
+   */
+  public final History getHistory() {
+    return history;
+  }
+
   /** @return individual instance statistics */
   public final InstanceStats[] update() {
-    return updateNow(true);
+    InstanceStats[] iss = collect();
+    publish(evaluate(iss, 0, iss.length));
+    return iss;
+  }
+
+  /**
+   * @return our live instances grouped by allocation time, or null
+   * if time is disabled
+   */
+  public final Cohorts getCohorts() {
+    if (Configure.COHORT_COUNT <= 0) {
+      return null;
+    }
+    int n = Configure.COHORT_COUNT;
+    long period = Configure.COHORT_PERIOD;
+    final long first_epoch = 
+      (System.currentTimeMillis() / period) - n + 1;
+    final long[] allocated = new long[n];
+    final long[] live = new long[n];
+    final long[] older = new long[2];
+    StripeTask task = new StripeTask() {
+      boolean run(Stripe s) {
+        CohortCounters c = (s.objs == null ? null : s.objs.cohorts);
+        if (c == null) {
+          return false;
+        }
+        c.addTo(first_epoch, allocated, live, older);
+        return true;
+      }
+    };
+    boolean timed = false;
+    for (int i = 0; i < stripes.length; i++) {
+      if (stripes[i].run(task)) {
+        timed = true;
+      }
+    }
+    if (!timed) {
+      return null;
+    }
+    return new Cohorts(
+        period, first_epoch, allocated, live, older[0], older[1]);
+  }
+
+  /** @return counters of the profiler's own work for this class */
+  public final SelfMetrics getSelfMetrics() {
+    MetricsTask task = new MetricsTask();
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i].run(task);
+    }
+    long contended = task.contended;
+    int resizes = task.resizes;
+    long entries = task.entries;
+    long table_bytes = task.table_bytes;
+    if (history != null) {
+      table_bytes += 40L * Configure.HISTORY_SIZE;
+    }
+    // we don't know the options of each entry, so we assume the
+    // current options
+    long entry_bytes =
+      entries * InstanceStats.getEntryBytes(settings.options);
+    return new SelfMetrics(
+        classname,
+        overall_stats.getAllocated(),
+        (sampled_out == null ? 0 : sampled_out.get(0)),
+        contended,
+        resizes,
+        sweep_passes,
+        sweep_nanos,
+        last_sweep_nanos,
+        sweep_reclaimed,
+        last_sweep_reclaimed,
+        entries,
+        entry_bytes,
+        table_bytes);
   }
 
   /** @return known agent names */
   public String[] getAgentNames() {
-    synchronized (lock) {
-      return (agents == null ? (new String[0]) : agents.getNames());
-    }
+    AgentsTable a = agents;
+    return (a == null ? (new String[0]) : a.getNames());
   }
 
   /** @return stats for a specific agent */
   public ClassStats getAgentStats(String agent) {
-    synchronized (lock) {
-      return (agents == null ? null : agents.get(agent));
+    AgentsTable a = agents;
+    return (a == null ? null : a.get(agent));
+  }
+
+  /**
+   * @return the live instances allocated by a specific agent,
+   * without scanning the other agents' instances
+   */
+  public InstanceStats[] getAgentInstances(String agent) {
+    AgentsTable a = agents;
+    AgentsTable.Entry e = (a == null ? null : a.getEntry(agent));
+    return (e == null ? new InstanceStats[0] : e.getInstances());
+  }
+
+  // for use by InstancesTable: count a new entry
+  final void countAllocated(InstanceStats is) {
+    overall_stats.allocate(is);
+    AgentsTable a = agents;
+    if (a != null &&
+        is instanceof InstanceStats.WithTimeStackContext) {
+      String agent = is.getAgentName();
+      if (agent != null) {
+        a.getOrCreateEntry(agent, this).add(
+            (InstanceStats.WithTimeStackContext) is);
+      }
+    }
+  }
+
+  // for use by InstancesTable: count a gc'ed entry
+  final void countCollected(InstanceStats is) {
+    overall_stats.gc(is);
+    if (agents != null &&
+        is instanceof InstanceStats.WithTimeStackContext) {
+      InstanceStats.WithTimeStackContext wc = 
+        (InstanceStats.WithTimeStackContext) is;
+      AgentsTable.Entry e = wc.agent;
+      if (e != null) {
+        // the entry rechecks this under its lock
+        e.remove(wc);
+      }
     }
   }
 
@@ -114,102 +357,641 @@ public class ClassTracker extends MemoryTracker {
       ")";
   }
 
-  // for use by MemoryStatsImpl
-  final void timerUpdate() { 
-    updateNow(false);
+  // for use by Sweeper: sweep up to "n" buckets of the current
+  // stripe, holding only that stripe's lock.  The size stats and
+  // agents are collected into pending totals and published when the
+  // pass over all stripes is complete.
+  //
+  // returns true if the pass is complete
+  final boolean sweep(int n) {
+    if (!Configure.SELF_METRICS) {
+      return sweepSlice(n);
+    }
+    long t = System.nanoTime();
+    boolean done = sweepSlice(n);
+    long nanos = System.nanoTime() - t;
+    sweep_nanos += nanos;
+    pass_nanos += nanos;
+    if (done) {
+      last_sweep_nanos = pass_nanos;
+      last_sweep_reclaimed = pass_reclaimed;
+      sweep_passes++;
+      pass_nanos = 0;
+      pass_reclaimed = 0;
+    }
+    return done;
   }
-  public void add(Object new_o) {
-    InstanceStats new_is = 
-      InstanceStats.newInstanceStats(new_o, options);
-    synchronized (lock) {
-      if (objs == null) {
-        objs = new InstancesTable() {
-          protected void allocate(InstanceStats is) {
-            overall_stats.allocate(is);
-          }
-          protected void gc(InstanceStats is) {
-            overall_stats.gc(is);
-          }
-        };
+  private boolean sweepSlice(int n) {
+    if (sweep_totals == null) {
+      sweep_totals = new Totals(newClassStats(1), null);
+      sweep_stripe = 0;
+      sweep_bucket = 0;
+    }
+    if (stripe_totals == null) {
+      stripe_totals = new Totals(newClassStats(1), null);
+    }
+    if (sweep_visitor == null) {
+      sweep_visitor = new InstancesTable.Visitor() {
+        public void visit(InstanceStats is) {
+          updateInstanceStats(is, stripe_totals);
+          countSite(stripe_totals, is);
+        }
+      };
+    }
+    if (sweep_task == null) {
+      sweep_task = new StripeTask() {
+        boolean run(Stripe s) {
+          return sweepStripe(s, sweep_slice);
+        }
+      };
+    }
+    sweep_slice = n;
+    boolean done = stripes[sweep_stripe].run(sweep_task);
+    if (!done) {
+      return false;
+    }
+    sweep_totals.add(stripe_totals);
+    stripe_totals = null;
+    stripe_restarts = 0;
+    sweep_bucket = 0;
+    if (++sweep_stripe < stripes.length) {
+      return false;
+    }
+    publish(sweep_totals);
+    LeakDetector.endPass(
+        this, sweep_totals.sites, System.currentTimeMillis());
+    sweep_totals = null;
+    return true;
+  }
+  // sweep the next slice of a stripe with its lock held, returns
+  // true if the stripe is complete
+  private boolean sweepStripe(Stripe s, int n) {
+    InstancesTable objs = s.objs;
+    if (objs == null) {
+      return true;
+    }
+    int resizes = objs.getResizeCount();
+    if (sweep_bucket == 0) {
+      sweep_resizes = resizes;
+    } else if (sweep_resizes != resizes) {
+      // the table was rehashed between our slices, either to grow
+      // or to compact its removed entries, so our bucket position
+      // is meaningless.  Drop this stripe's partial totals and
+      // restart the stripe.
+      //
+      // Each restart doubles the stripe's slice, so the stripe
+      // completes even if its table is often compacted.
+      stripe_totals = null;
+      if (stripe_restarts < 30) {
+        stripe_restarts++;
       }
-      objs.put(new_o, new_is);
+      sweep_bucket = 0;
+      return false;
+    }
+    int to = (int) Math.min(
+        (long) sweep_bucket + ((long) n << stripe_restarts),
+        (long) objs.capacity());
+    int size = objs.size();
+    objs.sweep(sweep_bucket, to, sweep_visitor);
+    if (Configure.SELF_METRICS) {
+      // the sweep only removes gc'ed entries
+      int reclaimed = size - objs.size();
+      pass_reclaimed += reclaimed;
+      sweep_reclaimed += reclaimed;
+    }
+    if (to < objs.capacity()) {
+      sweep_bucket = to;
+      return false;
+    }
+    return true;
+  }
+  private static void countSite(Totals t, InstanceStats is) {
+    int site = is.getAllocationSiteId();
+    if (site >= 0) {
+      if (t.sites == null) {
+        t.sites = new SiteCounts();
+      }
+      t.sites.add(site, is.getSampleWeight());
     }
   }
+  // for use by MemoryStatsImpl: unlink and count gc'ed instances
+  final void reap() {
+    RemoveTask task = null;
+    while (true) {
+      InstanceStats is = (InstanceStats) queue.poll();
+      if (is == null) {
+        break;
+      }
+      if (task == null) {
+        task = new RemoveTask();
+      }
+      task.is = is;
+      getStripe(is.hash).run(task);
+    }
+  }
+  // for use by LeakDetector
+  final Trend getTrend() {
+    return trend;
+  }
+  final void setTrend(Trend trend) {
+    this.trend = trend;
+  }
 
-  protected ClassStats newClassStats() {
-    return ClassStats.newClassStats(false);
+  // for use by MemoryStatsImpl: add a history sample
+  final void timerHistory(long now) {
+    ClassStats cs = overall_stats;
+    long live = cs.getScaledInstances();
+    long dead = cs.getScaledGarbageCollected();
+    History h = history;
+    if (h == null) {
+      if (live == 0 && dead == 0) {
+        return;
+      }
+      h = new History(Configure.HISTORY_SIZE);
+      history = h;
+    }
+    h.add(now, live, dead, live * bytes, cs.getSumCapacityBytes());
   }
-  protected void updateInstanceStats(InstanceStats current) {
-    String agent = current.getAgentName();
-    if (agent != null) {
-      if (agents == null) {
-        agents = new AgentsTable();
+  // for use by MemoryStatsImpl: adjust the adaptive sample ratio
+  // to keep the tracked adds rate under budget
+  final void timerAdapt(long now) {
+    long count = overall_stats.getAllocated();
+    long prior_count = adapt_count;
+    long prior_time = adapt_time;
+    adapt_count = count;
+    adapt_time = now;
+    if (prior_time <= 0 || now <= prior_time) {
+      return;
+    }
+    long rate = ((count - prior_count) * 1000) / (now - prior_time);
+    long budget = Configure.ADAPTIVE_SAMPLE_BUDGET;
+    int shift = sample_shift;
+    int new_shift = shift;
+    // the total shift, including the "setOptions" shift, is at most
+    // MAX_SAMPLE_SHIFT
+    int max_shift = settings.log_skips.length - 1;
+    if (new_shift > max_shift) {
+      new_shift = max_shift;
+    }
+    while (rate > budget && new_shift < max_shift) {
+      // halve the ratio
+      new_shift++;
+      rate >>= 1;
+    }
+    while (new_shift > 0 && (rate << 1) <= (budget >> 1)) {
+      // double the ratio, but stay under half the budget to avoid
+      // flapping
+      new_shift--;
+      rate <<= 1;
+    }
+    if (new_shift != shift) {
+      sample_shift = new_shift;
+    }
+  }
+
+  public final void add(Object new_o) {
+    add(new_o, false, 0);
+  }
+
+  // for use by Bootstrap: add an instance that was buffered before
+  // this tracker was registered, which keeps its allocation time and
+  // has no allocation site, since the replaying thread's stack would
+  // be misleading
+  final void addReplayed(Object new_o, long time) {
+    add(new_o, true, time);
+  }
+
+  private void add(Object new_o, boolean replayed, long time) {
+    Settings s = settings;
+    double[] log_skips = s.log_skips;
+    if (log_skips == null) {
+      track(new_o, s.options, 0, replayed, time);
+      return;
+    }
+    int shift = sample_shift;
+    if (shift >= log_skips.length) {
+      // raced with "setOptions"
+      shift = log_skips.length - 1;
+    }
+    Sampler sampler = Sampler.getSampler();
+    if (sampler.sample(s.sampler_id, log_skips[shift], s.shift + shift)) {
+      if (Configure.SELF_METRICS) {
+        int skipped = sampler.getSkipped();
+        if (skipped > 0) {
+          sampled_out.add(System.identityHashCode(new_o), 0, skipped);
+        }
       }
-      ClassStats cs = agents.get(agent);
-      if (cs == null) {
-        cs = newClassStats();
-        agents.put(agent, cs);
+      track(new_o, s.options, s.shift + shift, replayed, time);
+    }
+  }
+
+  // record an instance that was sampled at the given shift of the
+  // registered sample ratio
+  private void track(
+      Object new_o, Options o, int shift, boolean replayed, long time) {
+    if (Configure.GOVERNOR_BUDGET > 0 &&
+        (System.identityHashCode(new_o) &
+         Configure.GOVERNOR_PROBE_MASK) == 0) {
+      // time a uniform sample of the adds, see Governor
+      long t = System.nanoTime();
+      record(new_o, o, shift, replayed, time);
+      Governor.addProbe(
+          System.identityHashCode(new_o), System.nanoTime() - t);
+      return;
+    }
+    record(new_o, o, shift, replayed, time);
+  }
+  private void record(
+      Object new_o, Options o, int shift, boolean replayed, long time) {
+    InstanceStats new_is = (replayed ?
+        InstanceStats.newInstanceStats(new_o, o, queue, time, -1) :
+        InstanceStats.newInstanceStats(new_o, o, queue));
+    if (shift != 0) {
+      new_is.sample_shift = (byte) shift;
+    }
+    if (Configure.BUFFER_SIZE > 0) {
+      AllocationBuffer.add(this, new_is);
+      return;
+    }
+    getStripe(new_is.hash).add(new_is);
+  }
+
+  // for use by AllocationBuffer: put all buffered entries for this
+  // tracker, starting at "from", and null them out.
+  final void putAll(
+      ClassTracker[] cts, InstanceStats[] iss, int from, int to) {
+    PutAllTask task = null;
+    for (int i = from; i < to; i++) {
+      if (cts[i] != this) {
+        continue;
       }
-      // We could increment a counter every time a collection is created,
-      // but this would require to lookup the subject information.
-      cs.allocate(current);
+      if (task == null) {
+        task = new PutAllTask(cts, iss, to);
+      }
+      task.from = i;
+      getStripe(iss[i].hash).run(task);
     }
   }
 
-  /** update, get a list of non-gc'ed entities */
-  private InstanceStats[] updateNow(boolean returnEntities) {
+  private final Stripe getStripe(int hash) {
+    Stripe[] a = stripes;
+    int n = a.length;
+    if (n == 1) {
+      return a[0];
+    }
+    // InstancesTable buckets use the low bits of the identity
+    // hashcode, so we select the stripe with the high bits of a
+    // multiplicative hash.  Otherwise each stripe would only fill
+    // 1/N of its buckets.
+    int h = hash * 0x9E3779B9;
+    return a[(h >>> 16) & (n - 1)];
+  }
+
+  protected ClassStats newClassStats(int cells) {
+    return ClassStats.newClassStats(false, cells);
+  }
+  protected void updateInstanceStats(
+      InstanceStats current, Totals totals) {
+    // the live/gc'ed counts, including per-agent counts, are kept
+    // current by "countAllocated" and "countCollected"
+  }
+
+  // for use by ParallelUpdate: reap, then return the non-gc'ed
+  // entities without evaluating their sizes
+  final InstanceStats[] collect() {
+    if (Configure.BUFFER_SIZE > 0) {
+      AllocationBuffer.drainAll();
+    }
+    reap();
+
     // prune out the freed objects, create a list of entries
+    CollectTask task = new CollectTask();
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i].run(task);
+    }
+    task.ret = new InstanceStats[Math.max(task.ret_size, 1)];
+    task.ret_size = 0;
+    task.listing = true;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i].run(task);
+    }
+    InstanceStats[] ret = task.ret;
+    int ret_size = task.ret_size;
+
+    if (ret_size != ret.length) {
+      // trim to size
+      InstanceStats[] old = ret;
+      ret = new InstanceStats[ret_size];
+      System.arraycopy(old, 0, ret, 0, ret_size);
+    }
+    return ret;
+  }
+
+  // for use by ParallelUpdate: collect the size stats of entries
+  // [from, to).  This calls the instances' size methods, so it's
+  // done without holding any of our locks.
+  final Totals evaluate(InstanceStats[] iss, int from, int to) {
+    Totals totals = new Totals(newClassStats(1), null);
+    for (int i = from; i < to; i++) {
+      updateInstanceStats(iss[i], totals);
+    }
+    return totals;
+  }
+
+  // replace our size stats and agents with the given totals
+  final void publish(Totals totals) {
     synchronized (lock) {
+      overall_stats.setSizes(totals.stats);
+      AgentsTable a = agents;
+      if (a != null) {
+        a.setSizes(totals.agents);
+      }
+    }
+  }
+
+  // the size stats and agents table being collected by an update
+  // or sweep
+  static final class Totals {
+    final ClassStats stats;
+    AgentsTable agents;
+    // live instances per allocation site, only counted by a sweep
+    SiteCounts sites;
 
+    Totals(ClassStats stats, AgentsTable agents) {
+      this.stats = stats;
+      this.agents = agents;
+    }
+
+    // merge totals that were collected in parallel or per stripe
+    void add(Totals t) {
+      stats.addSizes(t.stats);
+      if (t.sites == null) {
+        // none
+      } else if (sites == null) {
+        sites = t.sites;
+      } else {
+        sites.addAll(t.sites);
+      }
+      if (t.agents == null) {
+        // none
+      } else if (agents == null) {
+        agents = t.agents;
+      } else {
+        agents.addAll(t.agents);
+      }
+    }
+  }
+
+  // the current options, see "setOptions"
+  private static final class Settings {
+    // the options set by "setOptions", before the Governor
+    final Options requested;
+    final Options options;
+    // the shift of the registered sample ratio to the current ratio
+    final int shift;
+    // Sampler "logq" per adaptive sample shift, or null if every
+    // allocation is tracked
+    final double[] log_skips;
+    // Sampler id, or -1 if never sampled
+    final int sampler_id;
+
+    Settings(
+        Options requested,
+        Options options,
+        int shift,
+        double[] log_skips,
+        int sampler_id) {
+      this.requested = requested;
+      this.options = options;
+      this.shift = shift;
+      this.log_skips = log_skips;
+      this.sampler_id = sampler_id;
+    }
+  }
+
+  private Settings newSettings(Options requested, Settings prior) {
+    Options o = requested;
+    if (Configure.GOVERNOR_BUDGET > 0) {
+      o = Governor.govern(o);
+    }
+    // round the ratio down to "base / 2^shift"
+    double base = options.getSampleRatio();
+    double ratio = o.getSampleRatio();
+    int shift = 0;
+    if (ratio <= 0.0 || base <= 0.0) {
+      ratio = 0.0;
+    } else {
+      while (shift < Configure.MAX_SAMPLE_SHIFT &&
+          base / (1 << shift) > ratio) {
+        shift++;
+      }
+      ratio = base / (1 << shift);
+    }
+    Options current = o;
+    if (ratio != o.getSampleRatio()) {
+      current = new Options(o.getFlags(), ratio);
+    }
+    if (agents == null &&
+        Configure.CAN_CAPTURE_CONTEXT &&
+        current.isContextEnabled()) {
+      // contexts were enabled after registration.  This is set
+      // before the caller publishes the settings, so an "add(obj)"
+      // that captures a context finds the table.
+      agents = new AgentsTable();
+    }
+    if (ratio >= 1.0 && Configure.ADAPTIVE_SAMPLE_BUDGET <= 0) {
+      return new Settings(requested, current, shift, null, -1);
+    }
+    int id =
+      (prior == null || prior.sampler_id < 0 ?
+       Sampler.newId() :
+       prior.sampler_id);
+    return new Settings(
+        requested, current, shift, newLogSkips(ratio, shift), id);
+  }
+
+  // an independently locked slice of the instances, which counts
+  // through its ClassTracker
+  private static final class Stripe {
+    private final ClassTracker ct;
+    InstancesTable objs;
+
+    // SelfMetrics hint that the lock is held, which is read without
+    // the lock, and the number of times a thread saw it set before
+    // taking the lock.  Every lock hold goes through "run" or "add",
+    // which clear it in a finally.
+    boolean busy;
+    long contended;
+
+    Stripe(ClassTracker ct) {
+      this.ct = ct;
+    }
+
+    int size() {
+      return (objs == null ? 0 : objs.size());
+    }
+
+    void put(InstanceStats new_is) {
       if (objs == null) {
-        if (returnEntities) {
-          return new InstanceStats[0];
-        } else {
-          return  null;
+        objs = InstancesTable.newInstancesTable(ct);
+      }
+      if (objs.cohorts == null && Configure.COHORT_COUNT > 0) {
+        // live counts by allocation time, created on the first
+        // timed instance
+        long time = new_is.getAllocationTime();
+        if (time > 0) {
+          objs.cohorts = new CohortCounters(time);
         }
       }
+      objs.put(new_is);
+    }
 
-      // clear size and capacity stats
-      overall_stats.reset();
-      if (agents != null) { 
-        agents.reset();
+    void remove(InstanceStats is) {
+      if (objs != null) {
+        objs.remove(is);
+      }
+    }
+
+    // run the task with our lock held, marking us busy
+    boolean run(StripeTask task) {
+      boolean waited = (Configure.SELF_METRICS && busy);
+      synchronized (this) {
+        enter(waited);
+        try {
+          return task.run(this);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    // same as "run" with a task that calls "put", without allocating
+    // a task per tracked instance
+    void add(InstanceStats new_is) {
+      boolean waited = (Configure.SELF_METRICS && busy);
+      synchronized (this) {
+        enter(waited);
+        try {
+          put(new_is);
+        } finally {
+          exit();
+        }
       }
+    }
+
+    // for SelfMetrics: called after taking the lock, where "waited"
+    // is true if the lock looked busy before we took it
+    private void enter(boolean waited) {
+      if (Configure.SELF_METRICS) {
+        busy = true;
+        if (waited) {
+          contended++;
+        }
+      }
+    }
+    // called before releasing the lock
+    private void exit() {
+      if (Configure.SELF_METRICS) {
+        busy = false;
+      }
+    }
+  }
+
+  // work done with a stripe's lock held, see "Stripe.run"
+  private abstract static class StripeTask {
+    abstract boolean run(Stripe s);
+  }
+
+  // for use by "reap": unlink a gc'ed instance
+  private static final class RemoveTask extends StripeTask {
+    InstanceStats is;
+    boolean run(Stripe s) {
+      s.remove(is);
+      return true;
+    }
+  }
 
-      InstanceStats[] ret = null;
-      int ret_size = 0;
-      if (returnEntities) {
-        ret = new InstanceStats[objs.size()];
+  // for use by "putAll": put the buffered entries from "from" that
+  // map to the stripe, and null them out
+  private final class PutAllTask extends StripeTask {
+    private final ClassTracker[] cts;
+    private final InstanceStats[] iss;
+    private final int to;
+    int from;
+    PutAllTask(ClassTracker[] cts, InstanceStats[] iss, int to) {
+      this.cts = cts;
+      this.iss = iss;
+      this.to = to;
+    }
+    boolean run(Stripe s) {
+      for (int j = from; j < to; j++) {
+        if (cts[j] != ClassTracker.this ||
+            getStripe(iss[j].hash) != s) {
+          continue;
+        }
+        // if the instance was gc'ed while buffered then the
+        // table will count it when it's dequeued or scanned
+        s.put(iss[j]);
+        cts[j] = null;
+        iss[j] = null;
       }
+      return true;
+    }
+  }
 
+  // for use by "collect": count the entries, then list them once
+  // "listing" is set
+  private static final class CollectTask extends StripeTask {
+    boolean listing;
+    InstanceStats[] ret;
+    int ret_size;
+    boolean run(Stripe s) {
+      if (!listing) {
+        ret_size += s.size();
+        return true;
+      }
+      InstancesTable objs = s.objs;
+      if (objs == null) {
+        return false;
+      }
       objs.startIterator();
       while (true) {
         InstanceStats is = objs.next();
         if (is == null) {
           break;
         }
-
-        if (returnEntities) {
-          if (ret_size >= ret.length) {
-            InstanceStats[] old = ret;
-            ret = new InstanceStats[2 * ret.length];
-            System.arraycopy(old, 0, ret, 0, ret_size);
-          }
-          ret[ret_size++] = is;
+        if (ret_size >= ret.length) {
+          InstanceStats[] old = ret;
+          ret = new InstanceStats[2 * ret.length];
+          System.arraycopy(old, 0, ret, 0, ret_size);
         }
-
-        // update the entry
-        updateInstanceStats(is); 
+        ret[ret_size++] = is;
       }
+      return true;
+    }
+  }
 
-      if (returnEntities && 
-          (ret_size != ret.length)) {
-        // trim to size
-        InstanceStats[] old = ret;
-        ret = new InstanceStats[ret_size];
-        System.arraycopy(old, 0, ret, 0, ret_size);
+  // for use by "getSelfMetrics": sum the stripes' counters
+  private static final class MetricsTask extends StripeTask {
+    long contended;
+    int resizes;
+    long entries;
+    long table_bytes;
+    boolean run(Stripe s) {
+      contended += s.contended;
+      InstancesTable objs = s.objs;
+      if (objs == null) {
+        return false;
       }
-
-      return ret;
+      resizes += objs.getResizeCount();
+      entries += objs.size();
+      // the open table has a parallel array of hashcodes
+      table_bytes +=
+        (Configure.OPEN_ADDRESSING ? 8L : 4L) * objs.capacity();
+      if (objs.cohorts != null) {
+        table_bytes += 24L * Configure.COHORT_COUNT;
+      }
+      return true;
     }
   }
 
@@ -219,67 +1001,53 @@ public class ClassTracker extends MemoryTracker {
       super(classname, bytes, options);
     }
 
-    protected void updateInstanceStats(InstanceStats current) {
-      // get the current size/capacity values
-      long size = (long) current.currentSize();
-      long capacity_count = (long) current.currentCapacityCount();
-      long capacity_bytes = (long) current.currentCapacityBytes();
+    protected void updateInstanceStats(
+        InstanceStats current, Totals totals) {
+      // get the current size/capacity values, unless they were
+      // disabled by "setOptions"
+      Options o = getCurrentOptions();
+      long size =
+        (o.isSizeEnabled() ? (long) current.currentSize() : 0);
+      long capacity_count = 0;
+      long capacity_bytes = 0;
+      if (o.isCapacityEnabled()) {
+        capacity_count = (long) current.currentCapacityCount();
+        capacity_bytes = (long) current.currentCapacityBytes();
+      }
+      int weight = current.getSampleWeight();
 
       String agent = current.getAgentName();
       if (agent != null) {
-        if (agents == null) {
-          agents = new AgentsTable();
+        // collect the agent's size stats, its counts are kept
+        // current by "countAllocated"
+        if (totals.agents == null) {
+          totals.agents = new AgentsTable();
         }
-        ClassStats cs = agents.get(agent);
+        ClassStats cs = totals.agents.get(agent);
         if (cs == null) {
-          cs = newClassStats();
-          agents.put(agent, cs);
+          cs = newClassStats(1);
+          totals.agents.put(agent, cs);
         }
-        // We could increment a counter every time a collection is
-        // created, but this would require us to lookup the subject
-        // information.
-        cs.allocate(current);
-        cs.update(size, capacity_count, capacity_bytes);
+        cs.update(size, capacity_count, capacity_bytes, weight);
       }
-      overall_stats.update(size, capacity_count, capacity_bytes);
-    }
-    protected ClassStats newClassStats() {
-      return ClassStats.newClassStats(true);
-    }
-  }
-  
-  // impl with random sampling support
-  private static class PlusSample extends ClassTracker {
-    private final double sample;
-    private final Random random = new Random();
-    public PlusSample(
-        String classname, int bytes, Options options) {
-      super(classname, bytes, options);
-      this.sample = options.getSampleRatio();
+      totals.stats.update(size, capacity_count, capacity_bytes, weight);
     }
-    public void add(Object new_o) {
-      if (random.nextDouble() <= sample) {
-        super.add(new_o);
-      }
+    protected ClassStats newClassStats(int cells) {
+      return ClassStats.newClassStats(true, cells);
     }
   }
 
-  // impl with random sampling support and size/capacity
-  //
-  // this is cut-n-paste of the above "PlusSample" impl, but
-  // required to get the right behavior with minimal overhead. 
-  private static class PlusSizeSample extends PlusSize {
-    private final double sample;
-    private final Random random = new Random();
-    public PlusSizeSample(
-        String classname, int bytes, Options options) {
-      super(classname, bytes, options);
-      this.sample = options.getSampleRatio();
-    }
-    public void add(Object new_o) {
-      if (random.nextDouble() <= sample) {
-        super.add(new_o);
-      }
+  // Sampler "logq" per adaptive sample shift, where the total shift
+  // is at most MAX_SAMPLE_SHIFT
+  static final double[] newLogSkips(double ratio, int shift) {
+    int n =
+      (Configure.ADAPTIVE_SAMPLE_BUDGET > 0 ?
+       Configure.MAX_SAMPLE_SHIFT + 1 - shift :
+       1);
+    double[] ret = new double[n];
+    for (int i = 0; i < n; i++) {
+      ret[i] = Sampler.getLogSkip(ratio / (1 << i));
     }
+    return ret;
   }
 }
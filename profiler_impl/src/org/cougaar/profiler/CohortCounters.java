@@ -0,0 +1,130 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * A ring of per-epoch allocated and live counts for one ClassTracker
+ * stripe, for "allocated N minutes ago, still alive" queries.
+ * <p>
+ * An instance is counted in the epoch of its allocation time, which
+ * is "time / COHORT_PERIOD".  Each slot is tagged with its epoch, and
+ * when an allocation needs a slot that holds an older epoch, that
+ * epoch's counts are folded into the "older" counts.  An instance
+ * that is gc'ed after its epoch was folded is subtracted from the
+ * "older" counts.
+ * <p>
+ * Instances allocated before the counters were created, e.g. before
+ * "time" was enabled at runtime, are not counted.
+ * <p>
+ * The counts are weighted by "InstanceStats.getSampleWeight()".
+ * All access is synchronized by the caller's stripe lock, so there
+ * are no atomic updates.
+ *
+ * @see Cohorts
+ */
+final class CohortCounters {
+
+  private final long start;
+  private final long[] epochs;
+  private final long[] allocated;
+  private final long[] live;
+  private long older_allocated;
+  private long older_live;
+
+  /** @param start the allocation time of the first counted instance */
+  CohortCounters(long start) {
+    this.start = start;
+    int n = Configure.COHORT_COUNT;
+    epochs = new long[n];
+    allocated = new long[n];
+    live = new long[n];
+    for (int i = 0; i < n; i++) {
+      epochs[i] = -1;
+    }
+  }
+
+  void allocate(InstanceStats is) {
+    long time = is.getAllocationTime();
+    if (time < start) {
+      return;
+    }
+    long w = is.getSampleWeight();
+    long e = time / Configure.COHORT_PERIOD;
+    int slot = (int) (e % epochs.length);
+    long slot_epoch = epochs[slot];
+    if (slot_epoch < e) {
+      // recycle the slot
+      older_allocated += allocated[slot];
+      older_live += live[slot];
+      epochs[slot] = e;
+      allocated[slot] = w;
+      live[slot] = w;
+    } else if (slot_epoch == e) {
+      allocated[slot] += w;
+      live[slot] += w;
+    } else {
+      // allocated long ago but only now put, e.g. by the
+      // AllocationBuffer
+      older_allocated += w;
+      older_live += w;
+    }
+  }
+
+  void gc(InstanceStats is) {
+    long time = is.getAllocationTime();
+    if (time < start) {
+      return;
+    }
+    long w = is.getSampleWeight();
+    long e = time / Configure.COHORT_PERIOD;
+    int slot = (int) (e % epochs.length);
+    if (epochs[slot] == e) {
+      live[slot] -= w;
+    } else {
+      older_live -= w;
+    }
+  }
+
+  // add our counts to a snapshot covering epochs
+  // [first_epoch, first_epoch + n)
+  void addTo(
+      long first_epoch,
+      long[] to_allocated,
+      long[] to_live,
+      long[] to_older) {
+    to_older[0] += older_allocated;
+    to_older[1] += older_live;
+    for (int slot = 0; slot < epochs.length; slot++) {
+      long e = epochs[slot];
+      if (e < 0) {
+        continue;
+      }
+      int i = (int) (e - first_epoch);
+      if (i < 0) {
+        to_older[0] += allocated[slot];
+        to_older[1] += live[slot];
+      } else if (i < to_allocated.length) {
+        to_allocated[i] += allocated[slot];
+        to_live[i] += live[slot];
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * A snapshot of a ClassTracker's live instances grouped by the
+ * minute (or COHORT_PERIOD) they were allocated, oldest first.
+ * <p>
+ * The counts are kept incrementally as instances are allocated and
+ * gc'ed, so a snapshot costs O(number of cohorts) regardless of
+ * the number of instances.  This is a cheap alternative to grouping
+ * the instances by "Groupings.MINUTE".
+ * <p>
+ * The counts are "scaled" counts, as in
+ * "ClassStats.getScaledInstances()", so divide by the Options sample
+ * ratio to estimate the totals.  Instances allocated before the
+ * oldest cohort are summed in the "older" counts.
+ *
+ * @see ClassTracker#getCohorts()
+ */
+public final class Cohorts {
+
+  private final long period;
+  private final long first_epoch;
+  private final long[] allocated;
+  private final long[] live;
+  private final long older_allocated;
+  private final long older_live;
+
+  Cohorts(
+      long period,
+      long first_epoch,
+      long[] allocated,
+      long[] live,
+      long older_allocated,
+      long older_live) {
+    this.period = period;
+    this.first_epoch = first_epoch;
+    this.allocated = allocated;
+    this.live = live;
+    this.older_allocated = older_allocated;
+    this.older_live = older_live;
+  }
+
+  /** @return the length of each cohort in milliseconds */
+  public long getPeriod() {
+    return period;
+  }
+
+  /** @return the number of cohorts */
+  public int size() {
+    return allocated.length;
+  }
+
+  /** @return the start time of the i'th oldest cohort */
+  public long getStartTime(int i) {
+    return (first_epoch + i) * period;
+  }
+
+  /** @return the number allocated in the i'th oldest cohort */
+  public long getAllocated(int i) {
+    return allocated[i];
+  }
+
+  /** @return the number still alive from the i'th oldest cohort */
+  public long getInstances(int i) {
+    return live[i];
+  }
+
+  /** @return the number allocated before the oldest cohort */
+  public long getOlderAllocated() {
+    return older_allocated;
+  }
+
+  /** @return the number still alive from before the oldest cohort */
+  public long getOlderInstances() {
+    return older_live;
+  }
+
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("(cohorts period=").append(period);
+    buf.append(" older=").append(older_live);
+    buf.append("/").append(older_allocated);
+    for (int i = 0; i < allocated.length; i++) {
+      if (allocated[i] != 0) {
+        buf.append(" ").append(getStartTime(i));
+        buf.append("=").append(live[i]);
+        buf.append("/").append(allocated[i]);
+      }
+    }
+    buf.append(")");
+    return buf.toString();
+  }
+}
@@ -70,24 +70,242 @@ interface Configure {
   long DELAY_AFTER_STARTUP = 500;
 
   /**
-   * Period for MemoryStatsImpl cleanup thread.
+   * Maximum number of allocations buffered during the
+   * DELAY_AFTER_STARTUP, which are replayed once the MemoryStatsImpl
+   * singleton is resolved.  See Bootstrap.
+   */
+  int BOOTSTRAP_BUFFER_SIZE = 16384;
+
+  /**
+   * Maximum number of ClassTracker registrations buffered during the
+   * DELAY_AFTER_STARTUP.
+   */
+  int BOOTSTRAP_CLASSES = 1024;
+
+  /**
+   * Period for MemoryStatsImpl cleanup thread's full sweep.
    * <p>
-   * Each ClassTracker's InstancesTable cleans a bit of itself every
-   * time an instance is added.  This thread periodically cleans the
-   * entire table in case it hasn't been accessed in a while.  If
-   * this thread is disabled then the stats and GC may be delay
-   * until UI update.
+   * The live/gc'ed counts are kept current by REAP_FREQUENCY, so
+   * this sweep is only required to refresh the size and capacity
+   * stats and to unlink any gc'ed entries that were missed.  The
+   * sweep is incremental, spread across REAP_FREQUENCY ticks by
+   * SWEEP_BUCKETS and SWEEP_TIME_BUDGET.
    */
   int UPDATE_FREQUENCY = 2 * 60 * 1000;
 
   /**
-   * Rehash factor for InstancesTable capacity.
+   * Maximum number of InstancesTable buckets swept per stripe lock
+   * hold, which bounds how long an allocating thread can block on
+   * the sweeper.
+   */
+  int SWEEP_BUCKETS = 256;
+
+  /**
+   * Time budget in milliseconds for each REAP_FREQUENCY tick of the
+   * incremental sweep.  An unfinished sweep resumes on the next tick.
+   */
+  int SWEEP_TIME_BUDGET = 10;
+
+  /**
+   * Default number of threads for "MemoryStats.updateAll", or zero
+   * to use the number of processors.
+   */
+  int UPDATE_PARALLELISM = 0;
+
+  /**
+   * Number of instances per slice when "MemoryStats.updateAll"
+   * splits the size evaluation of a large ClassTracker across
+   * threads.
+   */
+  int UPDATE_SPLIT_SIZE = 10000;
+
+  /**
+   * Number of samples in each ClassTracker's History ring, or zero
+   * to disable history.
    * <p>
-   * This is the average bucket size for the InstanceTable.  If the
+   * The default keeps an hour of HISTORY_PERIOD samples.  The ring
+   * is created when the class is first sampled with live or gc'ed
+   * instances, and costs 40 bytes per sample.
+   */
+  int HISTORY_SIZE = 121;
+
+  /**
+   * Period in milliseconds for the MemoryStatsImpl cleanup thread
+   * to add a History sample to each ClassTracker.
+   */
+  int HISTORY_PERIOD = 30 * 1000;
+
+  /**
+   * Per-sweep decay of the LeakDetector's growth trends.
+   * <p>
+   * Each UPDATE_FREQUENCY sweep adds a sample to every class and
+   * allocation site trend after multiplying the prior samples'
+   * weights by this factor, so the trends mostly reflect the last
+   * "1 / (1 - decay)" sweeps.
+   */
+  double LEAK_TREND_DECAY = 0.9;
+
+  /**
+   * Minimum number of sweeps before a class or allocation site can
+   * be ranked as a leak suspect.
+   */
+  int LEAK_MIN_SAMPLES = 5;
+
+  /**
+   * Number of allocation time cohorts kept by each timed
+   * ClassTracker, or zero to disable cohorts.
+   * <p>
+   * Each stripe of a class with Options "time" enabled keeps a ring
+   * of this many per-period allocated and live counts, which are
+   * updated as instances are put and gc'ed.  See Cohorts.
+   */
+  int COHORT_COUNT = 60;
+
+  /**
+   * Length of each allocation time cohort in milliseconds.
+   */
+  long COHORT_PERIOD = 60 * 1000;
+
+  /**
+   * Maximum fraction of the process CPU time that the profiler may
+   * consume, e.g. 0.03 for 3%, or zero to disable the Governor.
+   * <p>
+   * If enabled then while the profiler is over budget the Governor
+   * sheds stack capture, then time capture, then halves the sample
+   * ratios, and restores them once the profiler is well under
+   * budget.
+   */
+  double GOVERNOR_BUDGET = 0.0;
+
+  /**
+   * Identity hash mask for the Governor's timed "add(obj)" probes,
+   * which must be a power of two minus one.  The default times one
+   * in 64 tracked adds.
+   */
+  int GOVERNOR_PROBE_MASK = 63;
+
+  /**
+   * Period in milliseconds for the Governor to measure the
+   * profiler's overhead and adjust its shed level.
+   */
+  int GOVERNOR_PERIOD = 10 * 1000;
+
+  /**
+   * Keep per-ClassTracker counters of the profiler's own work, see
+   * SelfMetrics.
+   * <p>
+   * This costs a per-thread counter increment per sampled-out
+   * allocation, two writes of a shared field per stripe lock hold,
+   * and a few timestamps per sweep slice.  The shared writes add
+   * cache-line traffic to every tracked "add(obj)", so this is off
+   * by default.  When off, the self metrics still report entries
+   * and table sizes but no contention, sampled-out or sweep counts.
+   */
+  boolean SELF_METRICS = false;
+
+  /**
+   * Period for MemoryStatsImpl cleanup thread to poll each
+   * ClassTracker's ReferenceQueue.
+   * <p>
+   * Each InstanceStats is a WeakReference registered with its
+   * ClassTracker's queue.  When an instance is gc'ed the thread
+   * dequeues its InstanceStats, unlinks it from the InstancesTable
+   * and counts it as gc'ed.
+   */
+  int REAP_FREQUENCY = 1000;
+
+  /**
+   * Rehash factor for ChainedInstancesTable capacity.
+   * <p>
+   * This is the average bucket size for the table.  If the
    * table size outgrows this factor then the table will be rehashed.
-   * The factor also controls the table's self-clean, where every
-   * "put" scans the other entries in the bucket for GC.
+   * The factor also bounds the cost of unlinking a gc'ed entry,
+   * which scans the entry's bucket.
    */
   int REHASH_FACTOR = 7;
 
+  /**
+   * Use the OpenInstancesTable instead of the ChainedInstancesTable.
+   * <p>
+   * The open addressing table keeps its entries in an array of
+   * references parallel to an array of hashcodes and uses linear
+   * probing, so it doesn't walk REHASH_FACTOR chained entries per
+   * lookup.  This is more cache-friendly for classes with millions of
+   * instances, but costs two array slots per entry plus unused fill.
+   * The "InstanceStats.next" field is unused by this table.
+   */
+  boolean OPEN_ADDRESSING = false;
+
+  /**
+   * Number of independently locked InstancesTable stripes per
+   * ClassTracker, which is rounded up to a power of two.
+   * <p>
+   * With a single stripe every "add(obj)" on a class synchronizes
+   * on the same lock, so heavily allocated classes (e.g.
+   * "java.util.HashMap$Entry") serialize all allocating threads.
+   * With N stripes an instance is assigned to a stripe by its
+   * identity hashcode, which spreads concurrent allocations across
+   * N locks.  See COUNTER_CELLS for the ClassStats counters.
+   * <p>
+   * Each stripe costs a lock and a table, so this should be raised
+   * to roughly the number of CPUs only on large multiprocessor
+   * nodes.
+   */
+  int STRIPES = 1;
+
+  /**
+   * Capacity of the optional per-thread allocation buffer, or zero
+   * to disable buffering.
+   * <p>
+   * If enabled then "add(obj)" appends the new InstanceStats to a
+   * buffer local to the allocating thread.  The buffer is drained
+   * into the ClassTrackers when it fills, when a ClassTracker is
+   * updated, and by the MemoryStatsImpl cleanup thread.  This
+   * amortizes the ClassTracker lock and InstancesTable insert
+   * across many allocations, at the cost of a short delay before
+   * the instances show up in the stats.
+   */
+  int BUFFER_SIZE = 0;
+
+  /**
+   * Number of cells for each ClassTracker's live/gc'ed counters,
+   * which is rounded up to a power of two.
+   * <p>
+   * The counters are atomic adds to a cell selected by the
+   * instance's identity hashcode, so allocation and gc accounting
+   * never takes the ClassTracker lock.  Readers sum the cells.  Each
+   * cell is padded to a cache line, so this should match STRIPES to
+   * keep concurrent stripes from contending on the same counter.
+   */
+  int COUNTER_CELLS = STRIPES;
+
+  /**
+   * Maximum number of frames kept per captured allocation stack.
+   * <p>
+   * Captured stacks are interned by AllocationSites, so deep stacks
+   * cost table space per distinct allocation path rather than per
+   * instance.  The deepest frames are dropped without being walked.
+   */
+  int MAX_STACK_DEPTH = 32;
+
+  /**
+   * Adaptive sampling budget in tracked adds per second per class,
+   * or zero to disable adaptive sampling.
+   * <p>
+   * If enabled then the MemoryStatsImpl cleanup thread halves a
+   * ClassTracker's effective sample ratio while the class exceeds
+   * this rate, and doubles it again (up to the Options sample
+   * ratio) once the rate falls below a quarter of the budget.  Each
+   * sampled InstanceStats records the ratio it was sampled at, so
+   * the "scaled" ClassStats counts remain unbiased across ratio
+   * changes.
+   */
+  int ADAPTIVE_SAMPLE_BUDGET = 0;
+
+  /**
+   * Maximum number of times adaptive sampling may halve a class's
+   * sample ratio.
+   */
+  int MAX_SAMPLE_SHIFT = 20;
+
 }
@@ -0,0 +1,81 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small set of "long" counters, striped across cells so
+ * concurrent updates don't contend on a lock or cache line.
+ * <p>
+ * An update is an atomic add to the cell selected by the caller's
+ * hash, and a read sums that counter across all cells.  A read is
+ * not a snapshot of concurrent updates, but never sees a torn
+ * value.
+ *
+ * @see Configure#COUNTER_CELLS
+ */
+final class Counters {
+
+  // longs per cell if there's more than one cell, which pads each
+  // cell to a 64-byte cache line
+  private static final int PAD = 8;
+
+  private final AtomicLongArray cells;
+  private final int stride;
+  private final int mask;
+
+  /**
+   * @param counters the number of counters, at most 8 if there's
+   * more than one cell
+   * @param cells the number of cells, which is rounded up to a
+   * power of two
+   */
+  Counters(int counters, int cells) {
+    int n = 1;
+    while (n < cells) {
+      n <<= 1;
+    }
+    this.stride = (n > 1 ? PAD : counters);
+    this.mask = n - 1;
+    this.cells = new AtomicLongArray(n * stride);
+  }
+
+  /** add to a counter in the cell for the given identity hash */
+  void add(int hash, int counter, long delta) {
+    int i = counter;
+    if (mask != 0) {
+      // same multiplicative hash as ClassTracker's stripes, so
+      // each stripe updates its own cell
+      i += (((hash * 0x9E3779B9) >>> 16) & mask) * stride;
+    }
+    cells.addAndGet(i, delta);
+  }
+
+  /** @return the sum of a counter */
+  long get(int counter) {
+    long sum = 0;
+    for (int i = counter; i < cells.length(); i += stride) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+}
@@ -72,6 +72,9 @@ package org.cougaar.profiler;
  *     }
  *   }
  * </pre>
+ * See OptionsRules for a compiled alternative to the above
+ * if-chain, which maps class name patterns to Options without
+ * allocating.
  */
 public final class DefaultOptionsFactory {
 
@@ -104,11 +107,12 @@ public final class DefaultOptionsFactory {
   /**
    * Capture per-instance allocation stacktrace.
    * <p>
-   * Cost estimates (in bytes) for a stack with N elements:<pre>
-   *   initial:    32 + 4*N
-   *   resolved:   44 + 24*N
-   * </pre>
-   * Invokes "new Throwable()".
+   * Costs an int site id per profiled instance, which is 8 bytes
+   * with alignment if time is also captured and 16 bytes if not,
+   * plus the shared AllocationSites entry for each distinct stack.
+   * Walks up to MAX_STACK_DEPTH frames with a StackWalker per
+   * profiled allocation, unless a "SelfProfiler --sites=true"
+   * caller named the site.
    */ 
   private static final boolean CAPTURE_STACK = true;
 
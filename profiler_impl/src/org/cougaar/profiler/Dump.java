@@ -22,6 +22,7 @@ package org.cougaar.profiler;
 
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * A simple utility class to print the basic profiler state to
@@ -62,19 +63,104 @@ public class Dump {
       //ct.update();
       ClassStats cs = ct.getOverallStats();
       double trackRatio = ct.getOptions().getSampleRatio();
+      double sampleRatio = ct.getSampleRatio();
       int bytes = ct.getObjectSize();
-      printType(out, cs, cl, trackRatio, bytes);
+      printType(out, cs, cl, trackRatio, sampleRatio, bytes);
     }
   }
 
+  /** print the top leak suspects in CSV format */
+  public static void dumpLeakSuspectsTo(PrintStream out, int max) {
+    out.println(
+        "# Suspect, Score, Bytes/min, Live/min, Monotonicity, Live,"+
+        " Bytes, Sweeps");
+
+    MemoryStats memoryStats = MemoryStatsImpl.getInstance();
+    if (memoryStats == null) {
+      return;
+    }
+
+    LeakSuspect[] suspects = memoryStats.getLeakSuspects(max);
+    for (int i = 0; i < suspects.length; i++) {
+      LeakSuspect s = suspects[i];
+      String name = s.getClassName();
+      if (name == null) {
+        StackTraceElement[] st = s.getAllocationSite().getStackTrace();
+        name =
+          "site "+s.getAllocationSite().getId()+
+          (st.length > 0 ? " at "+st[0] : "");
+      }
+      out.println(
+          name+", "+
+          format(s.getScore())+", "+
+          format(s.getBytesSlope())+", "+
+          format(s.getSlope())+", "+
+          format(s.getMonotonicity())+", "+
+          s.getInstances()+", "+
+          s.getBytes()+", "+
+          s.getSamples());
+    }
+  }
+
+  /** print the profiler's own per-class counters in CSV format */
+  public static void dumpSelfMetricsTo(PrintStream out) {
+    out.println(
+        "# Type, Adds, Tracked, Sampled Out, Contended, Resizes,"+
+        " Sweeps, Sweep ms, Last Sweep ms, Reclaimed, Last Reclaimed,"+
+        " Entries, Entry Bytes, Table Bytes");
+
+    MemoryStats memoryStats = MemoryStatsImpl.getInstance();
+    if (memoryStats == null) {
+      return;
+    }
+
+    SelfMetrics[] metrics = memoryStats.getSelfMetrics();
+    Arrays.sort(metrics, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return
+          ((SelfMetrics) o1).getClassName().compareTo(
+            ((SelfMetrics) o2).getClassName());
+      }
+    });
+    long bytes = 0;
+    for (int i = 0; i < metrics.length; i++) {
+      SelfMetrics m = metrics[i];
+      bytes += m.getBytes();
+      out.println(
+          m.getClassName()+", "+
+          m.getAdds()+", "+
+          m.getTrackedAdds()+", "+
+          m.getSampledOutAdds()+", "+
+          m.getContendedLocks()+", "+
+          m.getResizes()+", "+
+          m.getSweeps()+", "+
+          format(m.getSweepNanos() / 1000000.0)+", "+
+          format(m.getLastSweepNanos() / 1000000.0)+", "+
+          m.getSweepReclaimed()+", "+
+          m.getLastSweepReclaimed()+", "+
+          m.getEntries()+", "+
+          m.getEntryBytes()+", "+
+          m.getTableBytes());
+    }
+    long site_bytes = memoryStats.getAllocationSiteBytes();
+    out.println("# Allocation site bytes: "+site_bytes);
+    out.println("# Total metadata bytes: "+(bytes + site_bytes));
+    out.println(
+        "# Startup allocations dropped: "+
+        memoryStats.getStartupDropped());
+  }
+
   private static void printType(
       PrintStream out,
       ClassStats cs,
       String cl,
       double trackRatio,
+      double sampleRatio,
       int bytes) {
-    long live = cs.getInstances();
-    long dead = cs.getGarbageCollected();
+    // the scaled counts are weighted by any adaptive sampling, so
+    // we scale them by the Options ratio
+    long live = cs.getScaledInstances();
+    long dead = cs.getScaledGarbageCollected();
     long cap = cs.getSumCapacityBytes();
     long sumSize = cs.getSumSize();
     long sumCap = cs.getSumCapacityCount();
@@ -95,7 +181,7 @@ public class Dump {
     }
     out.println(
         cl+", "+
-        format(100.0*trackRatio)+", "+
+        format(100.0*sampleRatio)+", "+
         live+", "+
         dead+", "+
         (live + dead)+", "+
@@ -113,6 +199,9 @@ public class Dump {
     // bug 4916788.  I suspect that DecimalFormat has the same
     // problem, so here we do it manually.  We don't expect
     // oddities like  NaNs/infinites/etc.
+    if (d < 0.0) {
+      return "-"+format(-d);
+    }
     double floor = Math.floor(d);
     double rem = d - floor;
     long shortrem = Math.round(rem * 100);
@@ -0,0 +1,208 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+import java.lang.reflect.Method;
+
+/**
+ * Bounds the CPU consumed by the profiler itself, see
+ * Configure.GOVERNOR_BUDGET.
+ * <p>
+ * The profiler's time is estimated from two sources:<ul>
+ *   <li>"ClassTracker.add(obj)" times the tracked adds whose
+ *       identity hash matches GOVERNOR_PROBE_MASK, which is a
+ *       uniform 1-in-(mask+1) sample, and scales the sum</li>
+ *   <li>the MemoryStatsImpl cleanup thread times its reaps and
+ *       sweeps</li>
+ * </ul>
+ * Every GOVERNOR_PERIOD the thread compares this time to the
+ * process CPU time, or, if the VM doesn't report that, to the
+ * elapsed time of all processors.  While the profiler is over budget
+ * it sheds one level per period:<ol>
+ *   <li>drop stack capture</li>
+ *   <li>drop time capture</li>
+ *   <li>halve the sample ratio, once per further level</li>
+ * </ol>
+ * Once it's under a quarter of the budget it restores one level per
+ * period.  The levels are applied on top of each ClassTracker's
+ * current options, and the sample ratio is rounded the same way as
+ * "ClassTracker.setOptions", so the scaled counts stay unbiased.
+ */
+final class Governor {
+
+  private static final int STACK_LEVEL = 1;
+  private static final int TIME_LEVEL = 2;
+  private static final int MAX_LEVEL =
+    TIME_LEVEL + Configure.MAX_SAMPLE_SHIFT;
+
+  // probed "add(obj)" nanoseconds, before scaling
+  private static final Counters add_nanos =
+    new Counters(1, Configure.COUNTER_CELLS);
+
+  // the shed level, read by "ClassTracker.newSettings"
+  private static volatile int level;
+
+  // the rest is only used by the cleanup thread, except for the
+  // "getStatus" reads
+  private static long thread_nanos;
+  private static long last_nanos;
+  private static long last_profiler;
+  private static long last_cpu;
+  private static volatile double overhead;
+
+  // "com.sun.management.OperatingSystemMXBean.getProcessCpuTime()",
+  // or null
+  private static Object os_bean;
+  private static Method cpu_method;
+  private static boolean cpu_init;
+
+  private Governor() { }
+
+  /** for use by ClassTracker: record a probed add */
+  static void addProbe(int hash, long nanos) {
+    add_nanos.add(hash, 0, nanos);
+  }
+
+  /** for use by MemoryStatsImpl: record cleanup thread work */
+  static void addThreadTime(long nanos) {
+    thread_nanos += nanos;
+  }
+
+  /** @return the options with the current level shed */
+  static Options govern(Options o) {
+    int l = level;
+    if (l <= 0) {
+      return o;
+    }
+    int flags = o.getFlags() & ~Options.STACK_MASK;
+    if (l >= TIME_LEVEL) {
+      flags &= ~Options.TIME_MASK;
+    }
+    double ratio = o.getSampleRatio();
+    if (l > TIME_LEVEL) {
+      ratio /= (1 << (l - TIME_LEVEL));
+    }
+    if (flags == o.getFlags() && ratio == o.getSampleRatio()) {
+      return o;
+    }
+    return new Options(flags, ratio);
+  }
+
+  /**
+   * for use by MemoryStatsImpl: measure the overhead and adjust the
+   * level, each GOVERNOR_PERIOD
+   */
+  static void tick(ClassTracker[] cts) {
+    long nanos = System.nanoTime();
+    long profiler =
+      thread_nanos +
+      add_nanos.get(0) * (Configure.GOVERNOR_PROBE_MASK + 1);
+    long cpu = getProcessCpuTime();
+    if (cpu < 0) {
+      cpu = nanos * Runtime.getRuntime().availableProcessors();
+    }
+    long prior_cpu = last_cpu;
+    long prior_profiler = last_profiler;
+    boolean first = (last_nanos == 0);
+    last_nanos = nanos;
+    last_profiler = profiler;
+    last_cpu = cpu;
+    if (first || cpu <= prior_cpu) {
+      return;
+    }
+
+    double o = ((double) (profiler - prior_profiler)) / (cpu - prior_cpu);
+    overhead = o;
+    int l = level;
+    int new_l = l;
+    if (o > Configure.GOVERNOR_BUDGET && l < MAX_LEVEL) {
+      new_l = l + 1;
+    } else if (o < Configure.GOVERNOR_BUDGET / 4 && l > 0) {
+      new_l = l - 1;
+    }
+    if (new_l == l) {
+      return;
+    }
+    level = new_l;
+    for (int i = 0; i < cts.length; i++) {
+      cts[i].govern();
+    }
+    System.err.println(
+        "MemoryStats governor "+
+        (new_l > l ? "shed" : "restored")+
+        " level "+Math.max(l, new_l)+", "+getStatus());
+  }
+
+  /** @return a description of the overhead and shed detail */
+  static String getStatus() {
+    int l = level;
+    StringBuffer buf = new StringBuffer();
+    buf.append("overhead ");
+    buf.append(Math.round(overhead * 10000) / 100.0);
+    buf.append("% of budget ");
+    buf.append(Math.round(Configure.GOVERNOR_BUDGET * 10000) / 100.0);
+    buf.append("%");
+    if (l <= 0) {
+      buf.append(", nothing shed");
+    } else {
+      buf.append(", shed stack");
+      if (l >= TIME_LEVEL) {
+        buf.append(", time");
+      }
+      if (l > TIME_LEVEL) {
+        buf.append(", sample ratio / ");
+        buf.append(1 << (l - TIME_LEVEL));
+      }
+    }
+    return buf.toString();
+  }
+
+  // @return the process CPU nanoseconds, or -1 if not supported
+  private static long getProcessCpuTime() {
+    if (!cpu_init) {
+      cpu_init = true;
+      try {
+        Class cl = Class.forName("java.lang.management.ManagementFactory");
+        Object bean =
+          cl.getMethod("getOperatingSystemMXBean", new Class[0])
+          .invoke(null, new Object[0]);
+        Class ifc = Class.forName(
+            "com.sun.management.OperatingSystemMXBean");
+        if (ifc.isInstance(bean)) {
+          cpu_method = ifc.getMethod("getProcessCpuTime", new Class[0]);
+          os_bean = bean;
+        }
+      } catch (Exception e) {
+        // not supported by this VM
+      }
+    }
+    if (cpu_method == null) {
+      return -1;
+    }
+    try {
+      Object ret = cpu_method.invoke(os_bean, new Object[0]);
+      long t = ((Long) ret).longValue();
+      return (t > 0 ? t : -1);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+}
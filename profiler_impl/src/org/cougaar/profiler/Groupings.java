@@ -158,16 +158,15 @@ public class Groupings {
     return ret;
   }
 
-  /** group by allocation stacktrace */
+  /**
+   * group by allocation stacktrace, where the keys are the interned
+   * AllocationSites
+   */
   public static final Group STACK_GROUP =
     new Group() {
       public Object getKey(Object o) {
         InstanceStats is = (InstanceStats) o;
-        Throwable throwable = is.getThrowable();
-        if (throwable == null) {
-          return null;
-        }
-        return new StackElements(throwable);
+        return is.getAllocationSite();
       }
     };
   /** group by object equals */
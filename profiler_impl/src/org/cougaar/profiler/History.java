@@ -0,0 +1,168 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * A fixed-size ring of periodic ClassStats samples, for viewing
+ * growth trends.
+ * <p>
+ * Each sample records the time, the "scaled" live and gc'ed counts,
+ * the live bytes and the sum of capacity bytes.  Rates over a time
+ * window are derived from the oldest and newest samples in that
+ * window, so no per-allocation data is kept.
+ * <p>
+ * Samples are added by the MemoryStatsImpl cleanup thread every
+ * HISTORY_PERIOD.  The size stats are as fresh as the last sweep
+ * or update.
+ *
+ * @see Configure#HISTORY_SIZE
+ */
+public final class History {
+
+  // sample fields, interleaved in a single array
+  private static final int TIME = 0;
+  private static final int LIVE = 1;
+  private static final int DEAD = 2;
+  private static final int LIVE_BYTES = 3;
+  private static final int CAPACITY_BYTES = 4;
+  private static final int FIELDS = 5;
+
+  private final long[] samples;
+  private final int capacity;
+  // index of the oldest sample
+  private int head;
+  private int size;
+
+  History(int capacity) {
+    this.capacity = capacity;
+    this.samples = new long[capacity * FIELDS];
+  }
+
+  // for use by ClassTracker: add a sample, replacing the oldest
+  // sample if full
+  synchronized void add(
+      long time,
+      long live,
+      long dead,
+      long liveBytes,
+      long capacityBytes) {
+    int i;
+    if (size < capacity) {
+      i = (head + size++) % capacity;
+    } else {
+      i = head;
+      head = (head + 1) % capacity;
+    }
+    int j = i * FIELDS;
+    samples[j + TIME] = time;
+    samples[j + LIVE] = live;
+    samples[j + DEAD] = dead;
+    samples[j + LIVE_BYTES] = liveBytes;
+    samples[j + CAPACITY_BYTES] = capacityBytes;
+  }
+
+  /** @return the number of samples */
+  public synchronized int size() {
+    return size;
+  }
+
+  /** @return the time of the i'th oldest sample */
+  public synchronized long getTime(int i) {
+    return get(i, TIME);
+  }
+
+  /** @return the scaled number of live objects */
+  public synchronized long getInstances(int i) {
+    return get(i, LIVE);
+  }
+
+  /** @return the scaled number of garbage collected objects */
+  public synchronized long getGarbageCollected(int i) {
+    return get(i, DEAD);
+  }
+
+  /** @return the scaled live objects times the object size */
+  public synchronized long getLiveBytes(int i) {
+    return get(i, LIVE_BYTES);
+  }
+
+  /** @return the sum of capacity bytes */
+  public synchronized long getCapacityBytes(int i) {
+    return get(i, CAPACITY_BYTES);
+  }
+
+  /**
+   * @param window the window in milliseconds, e.g. 60000
+   * @return scaled allocations per second over the window, or
+   * zero if there are too few samples
+   */
+  public synchronized double getAllocationRate(long window) {
+    return getRate(window, true);
+  }
+
+  /**
+   * @param window the window in milliseconds
+   * @return scaled garbage collections per second over the window
+   */
+  public synchronized double getGarbageCollectionRate(long window) {
+    return getRate(window, false);
+  }
+
+  private long get(int i, int field) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException(
+          "Index: "+i+", Size: "+size);
+    }
+    return samples[((head + i) % capacity) * FIELDS + field];
+  }
+
+  private double getRate(long window, boolean alloc) {
+    if (size < 2) {
+      return 0.0;
+    }
+    int newest = size - 1;
+    long t1 = get(newest, TIME);
+    // find the oldest sample within the window
+    int oldest = newest;
+    while (oldest > 0 && get(oldest - 1, TIME) >= t1 - window) {
+      oldest--;
+    }
+    if (oldest == newest) {
+      // window is smaller than our sample period
+      oldest = newest - 1;
+    }
+    long t0 = get(oldest, TIME);
+    if (t1 <= t0) {
+      return 0.0;
+    }
+    long dead = get(newest, DEAD) - get(oldest, DEAD);
+    long delta = dead;
+    if (alloc) {
+      // allocated = live + dead
+      delta += get(newest, LIVE) - get(oldest, LIVE);
+    }
+    return (delta * 1000.0) / (t1 - t0);
+  }
+
+  public String toString() {
+    return "(history size="+size()+" capacity="+capacity+")";
+  }
+}
@@ -20,6 +20,7 @@
  */
 package org.cougaar.profiler;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 
 /**
@@ -27,33 +28,64 @@ import java.lang.ref.WeakReference;
  * and optional allocation timestamp, stacktrace, size
  * metrics, and context.
  */ 
-public class InstanceStats {
-
-  // this baseclass, with just a weak reference to the instance,
-  // costs 40 bytes
+public class InstanceStats extends WeakReference {
 
+  // this baseclass is itself the weak reference to the instance,
+  // which is registered with the ClassTracker's ReferenceQueue.
+  // The reference fields plus "next" and "hash" cost 32 bytes.
   //
   // RFE: could we add these fields to the instance itself, since
   // we're modifying its bytecode anyways?
   // 
 
-  /** A WeakReference to the object. */
-  private final WeakReference ref;
-
   /** for ClassTracker use! */
   InstanceStats next;
 
+  /**
+   * The instance's identity hashcode, which we keep so the entry
+   * can be found after the instance has been gc'ed.
+   */
+  final int hash;
+
+  /**
+   * The adaptive sample shift when this instance was sampled, see
+   * "getSampleWeight()".
+   */
+  byte sample_shift;
+
   /** Get the instance by accessing the weak reference */
   public final Object get() {
-    return ref.get();
+    return super.get();
+  }
+
+  /**
+   * The number of allocations this instance represents relative to
+   * the Options sample ratio, which is greater than one if adaptive
+   * sampling had lowered the ratio when this instance was sampled.
+   */
+  public final int getSampleWeight() {
+    return (1 << sample_shift);
   }
 
   /** System time when allocated */
   public long getAllocationTime() {
     return -1;
   }
-  /** Stacktrace when allocated */
+  /**
+   * Stacktrace when allocated, which is a new Throwable holding the
+   * "getAllocationSite()" stack.
+   */
   public Throwable getThrowable() {
+    AllocationSite site = getAllocationSite();
+    return (site == null ? null : site.toThrowable());
+  }
+  /** Interned AllocationSites id when allocated, or -1 */
+  public int getAllocationSiteId() {
+    AllocationSite site = getAllocationSite();
+    return (site == null ? -1 : site.getId());
+  }
+  /** Interned stacktrace when allocated */
+  public AllocationSite getAllocationSite() {
     return null;
   }
   /** Most recent "size()" calculation */
@@ -117,23 +149,45 @@ public class InstanceStats {
     return 0;
   }
 
-  protected InstanceStats(WeakReference ref) {
-    this.ref = ref;
+  protected InstanceStats(Object obj, ReferenceQueue queue) {
+    super(obj, queue);
+    this.hash = System.identityHashCode(obj);
   }
 
   // factory method:
-  static InstanceStats newInstanceStats(Object obj, Options options) {
+  static InstanceStats newInstanceStats(
+      Object obj, Options options, ReferenceQueue queue) {
+    long time =
+      (options.isTimeEnabled() ? System.currentTimeMillis() : -1);
+    int site = -1;
+    if (options.isStackEnabled()) {
+      // use the site named by a "SelfProfiler --sites=true" caller,
+      // if any, otherwise capture the stack
+      if (AllocationSites.isNaming()) {
+        site = AllocationSites.takePending(obj);
+      }
+      if (site < 0) {
+        site = AllocationSites.capture();
+      }
+    }
+    return newInstanceStats(obj, options, queue, time, site);
+  }
+
+  // factory method for an instance allocated at the given time and
+  // site id, e.g. one buffered by the Bootstrap, which has no site
+  static InstanceStats newInstanceStats(
+      Object obj, Options options, ReferenceQueue queue,
+      long time, int site) {
     // parse options
     boolean plusTime = options.isTimeEnabled();
     boolean plusStack = options.isStackEnabled();
-    boolean plusContext = 
+    boolean plusContext =
       (Configure.CAN_CAPTURE_CONTEXT && options.isContextEnabled());
 
-    // get field values
-    WeakReference ref = new WeakReference(obj);
-    long time = (plusTime ? System.currentTimeMillis() : -1);
-    Throwable stack = (plusStack ? new Throwable() : null);
-    InstanceContext context = 
+    if (!plusTime) {
+      time = -1;
+    }
+    InstanceContext context =
       (plusContext ? InstanceContext.getInstanceContext() : null);
 
     // allocate subclass with minimal number of field slots
@@ -143,23 +197,39 @@ public class InstanceStats {
       //   (time x stack x size) + context
       // and instead use our catch-all implementation with all
       // four field slots. 
-      return new WithTimeStackContext(ref, time, stack, context);
+      return new WithTimeStackContext(
+          obj, queue, time, site, context);
     } else if (plusTime) {
       if (plusStack) {
-        return new WithTimeStack(ref, time, stack);
+        return new WithTimeStack(obj, queue, time, site);
       } else {
-        return new WithTime(ref, time);
+        return new WithTime(obj, queue, time);
       }
     } else if (plusStack) {
-      // a stack is relatively expensive, so for simplicity we
-      // don't implement this permutation:
+      // for simplicity we don't implement this permutation:
       //    Stack
       // and waste 8 bytes for an unused time slot:
       //    TimeStack
-      return new WithTimeStack(ref, -1, stack);
+      return new WithTimeStack(obj, queue, -1, site);
     } else {
       // the minimal case
-      return new InstanceStats(ref);
+      return new InstanceStats(obj, queue);
+    }
+  }
+
+  // estimated bytes per entry created by "newInstanceStats" with
+  // the given options, see the subclass comments
+  static int getEntryBytes(Options options) {
+    if (Configure.CAN_CAPTURE_CONTEXT && options.isContextEnabled()) {
+      // the time/stack entry plus the context and agent list
+      // fields, plus the context itself
+      return 64 + 80;
+    } else if (options.isStackEnabled()) {
+      return 48;
+    } else if (options.isTimeEnabled()) {
+      return 40;
+    } else {
+      return 32;
     }
   }
 
@@ -173,10 +243,10 @@ public class InstanceStats {
 
   private static class WithTime extends InstanceStats {
     // this adds 8 bytes to the basic size, for a total
-    // of 48 bytes
+    // of 40 bytes
     private final long time;
-    public WithTime(WeakReference ref, long time) {
-      super(ref);
+    public WithTime(Object obj, ReferenceQueue queue, long time) {
+      super(obj, queue);
       this.time = time;
     }
     public long getAllocationTime() {
@@ -184,43 +254,45 @@ public class InstanceStats {
     }
   }
   private static class WithTimeStack extends WithTime {
-    // The initial Throwable representation uses a lazy native
-    // "backtrace" that's used to fill in the elements when they're
-    // requested.  A request is any "toString()", "getStackTrace()",
-    // "writeObject()", or other accesor.  Once resolved the
-    // backtrace is presumably freed.  A backtrace is likely a native
-    // array of 32-bit PC addresses.  The resolved StackTraceElement
-    // strings are interned, so that cost is amortized out.
-    //  
-    // Cost estimates (in bytes) for a stack with N elements:
-    //   initial:    32 + 4*N
-    //   resolved:   44 + 24*N 
-    // the "WithTime" baseclass costs 48 bytes, yielding:
-    //   initial:    80 + 4*N
-    //   resolved:   92 + 24*N 
-    private final Throwable stack;
+    // The stack is interned when captured, so we only keep its
+    // AllocationSites id, or -1 if none.  The frames are shared by
+    // all instances allocated at the same site.
+    //
+    // The "WithTime" baseclass costs 40 bytes, plus the 4 byte id
+    // yields 48 bytes with alignment.
+    private final int site;
     public WithTimeStack(
-        WeakReference ref,
+        Object obj,
+        ReferenceQueue queue,
         long time,
-        Throwable stack) {
-      super(ref, time);
-      this.stack = stack;
+        int site) {
+      super(obj, queue, time);
+      this.site = site;
+    }
+    public int getAllocationSiteId() {
+      return site;
     }
-    public Throwable getThrowable() {
-      return stack;
+    public AllocationSite getAllocationSite() {
+      return AllocationSites.getSite(site);
     }
   }
-  private static class WithTimeStackContext extends WithTimeStack {
+  static class WithTimeStackContext extends WithTimeStack {
     // The memory cost is the super's cost plus context, which
     // costs somewhere around 80+ bytes, depending upon the stack
     // and number of principles.
     private final InstanceContext context;
+    // the agent that counted this instance and its linked list,
+    // guarded by the AgentsTable.Entry lock
+    AgentsTable.Entry agent;
+    WithTimeStackContext agent_prev;
+    WithTimeStackContext agent_next;
     public WithTimeStackContext(
-        WeakReference ref,
+        Object obj,
+        ReferenceQueue queue,
         long time,
-        Throwable stack,
+        int site,
         InstanceContext context) {
-      super(ref, time, stack);
+      super(obj, queue, time, site);
       this.context = context;
       if (context == null) {
         throw new InternalError("null context");
@@ -0,0 +1,209 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * Ranks classes and allocation sites by their live memory growth.
+ * <p>
+ * This is fed by the Sweeper, so it costs a per-instance site count
+ * in the sweep and a few multiply-adds per class and site per sweep
+ * cycle.  Each class and site keeps a decayed Trend of its live count
+ * and bytes, and the suspects are those with at least
+ * LEAK_MIN_SAMPLES sweeps, a positive bytes slope and mostly
+ * increasing samples.
+ *
+ * @see MemoryStats#getLeakSuspects(int)
+ */
+final class LeakDetector {
+
+  private static final Object lock = new Object();
+
+  private static long startTime;
+
+  // site counts and bytes for the current sweep cycle
+  private static SiteCounts cycle_counts = new SiteCounts();
+  private static SiteCounts cycle_bytes = new SiteCounts();
+
+  // per-site trends, indexed by site id
+  private static Trend[] site_trends = new Trend[0];
+
+  private LeakDetector() { }
+
+  private static double getMinutes(long now) {
+    if (startTime == 0) {
+      startTime = now;
+    }
+    return (now - startTime) / 60000.0;
+  }
+
+  // for use by ClassTracker: a sweep pass over a tracker is
+  // complete
+  static void endPass(ClassTracker ct, SiteCounts sites, long now) {
+    double ratio = ct.getOptions().getSampleRatio();
+    if (ratio <= 0.0) {
+      return;
+    }
+    int bytesEach = ct.getObjectSize();
+    ClassStats cs = ct.getOverallStats();
+    double live = cs.getScaledInstances() / ratio;
+    double bytes = live * bytesEach + cs.getSumCapacityBytes() / ratio;
+    synchronized (lock) {
+      Trend t = ct.getTrend();
+      if (t == null) {
+        if (live <= 0.0) {
+          return;
+        }
+        t = new Trend();
+        ct.setTrend(t);
+      }
+      t.add(getMinutes(now), live, bytes);
+
+      if (sites == null) {
+        return;
+      }
+      for (int i = 0; i < sites.capacity(); i++) {
+        int site = sites.getSite(i);
+        if (site >= 0) {
+          double count = sites.getCount(i) / ratio;
+          cycle_counts.add(site, count);
+          cycle_bytes.add(site, count * bytesEach);
+        }
+      }
+    }
+  }
+
+  // for use by Sweeper: a sweep cycle over all trackers is complete
+  static void endCycle(long now) {
+    synchronized (lock) {
+      double x = getMinutes(now);
+      int n = AllocationSites.getSiteCount();
+      if (site_trends.length < n) {
+        Trend[] old = site_trends;
+        site_trends = new Trend[n];
+        System.arraycopy(old, 0, site_trends, 0, old.length);
+      }
+      double[] counts = new double[n];
+      double[] bytes = new double[n];
+      for (int i = 0; i < cycle_counts.capacity(); i++) {
+        int site = cycle_counts.getSite(i);
+        if (site >= 0 && site < n) {
+          counts[site] = cycle_counts.getCount(i);
+        }
+      }
+      for (int i = 0; i < cycle_bytes.capacity(); i++) {
+        int site = cycle_bytes.getSite(i);
+        if (site >= 0 && site < n) {
+          bytes[site] = cycle_bytes.getCount(i);
+        }
+      }
+      for (int site = 0; site < n; site++) {
+        Trend t = site_trends[site];
+        if (t == null) {
+          if (counts[site] <= 0.0) {
+            continue;
+          }
+          t = new Trend();
+          site_trends[site] = t;
+        }
+        t.add(x, counts[site], bytes[site]);
+      }
+      cycle_counts = new SiteCounts();
+      cycle_bytes = new SiteCounts();
+    }
+  }
+
+  /** @see MemoryStats#getLeakSuspects(int) */
+  static LeakSuspect[] getSuspects(ClassTracker[] cts, int max) {
+    if (max <= 0) {
+      return new LeakSuspect[0];
+    }
+    LeakSuspect[] top = new LeakSuspect[max];
+    int n = 0;
+    synchronized (lock) {
+      for (int i = 0; i < cts.length; i++) {
+        Trend t = cts[i].getTrend();
+        if (isSuspect(t)) {
+          n = insert(
+              top, n,
+              new LeakSuspect(cts[i].getClassName(), null, t));
+        }
+      }
+      for (int site = 0; site < site_trends.length; site++) {
+        Trend t = site_trends[site];
+        if (isSuspect(t)) {
+          n = insert(
+              top, n,
+              new LeakSuspect(
+                null, AllocationSites.getSite(site), t));
+        }
+      }
+    }
+    LeakSuspect[] ret = new LeakSuspect[n];
+    System.arraycopy(top, 0, ret, 0, n);
+    return ret;
+  }
+
+  // for use by MemoryStatsImpl: add the latest site counts
+  static void addSites(Snapshot.Builder b) {
+    synchronized (lock) {
+      for (int site = 0; site < site_trends.length; site++) {
+        Trend t = site_trends[site];
+        if (t == null) {
+          continue;
+        }
+        StackTraceElement[] st = 
+          AllocationSites.getSite(site).getStackTrace();
+        b.add(
+            "site "+site+(st.length > 0 ? " at "+st[0] : ""),
+            Snapshot.SITE, t.getCount(), 0, t.getBytes());
+      }
+    }
+  }
+
+  private static boolean isSuspect(Trend t) {
+    return
+      (t != null &&
+       t.getSamples() >= Configure.LEAK_MIN_SAMPLES &&
+       t.getBytesSlope() > 0.0 &&
+       t.getMonotonicity() > 0.0);
+  }
+
+  // insert into the sorted top list, dropping the lowest score if
+  // full
+  private static int insert(LeakSuspect[] top, int n, LeakSuspect s) {
+    double score = s.getScore();
+    int i = n;
+    if (n == top.length) {
+      if (score <= top[n - 1].getScore()) {
+        return n;
+      }
+      i = n - 1;
+    } else {
+      n++;
+    }
+    while (i > 0 && top[i - 1].getScore() < score) {
+      top[i] = top[i - 1];
+      i--;
+    }
+    top[i] = s;
+    return n;
+  }
+}
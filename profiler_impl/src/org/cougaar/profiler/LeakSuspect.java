@@ -0,0 +1,123 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * A class or allocation site whose live memory is steadily growing,
+ * as ranked by "MemoryStats.getLeakSuspects(int)".
+ * <p>
+ * The counts and bytes are estimated totals, scaled by the sample
+ * ratio.  Site bytes only include the shallow object size, since
+ * capacities are summed per class.
+ */
+public final class LeakSuspect {
+
+  private final String classname;
+  private final AllocationSite site;
+  private final double score;
+  private final double slope;
+  private final double bytesSlope;
+  private final double monotonicity;
+  private final long live;
+  private final long bytes;
+  private final int samples;
+
+  LeakSuspect(
+      String classname,
+      AllocationSite site,
+      Trend t) {
+    this.classname = classname;
+    this.site = site;
+    this.slope = t.getSlope();
+    this.bytesSlope = t.getBytesSlope();
+    this.monotonicity = t.getMonotonicity();
+    this.score = bytesSlope * monotonicity;
+    this.live = (long) t.getCount();
+    this.bytes = (long) t.getBytes();
+    this.samples = t.getSamples();
+  }
+
+  /** @return the class name, or null if this is a site */
+  public String getClassName() {
+    return classname;
+  }
+
+  /** @return the allocation site, or null if this is a class */
+  public AllocationSite getAllocationSite() {
+    return site;
+  }
+
+  /**
+   * @return the ranking score, which is the bytes growth per minute
+   * weighted by the monotonicity
+   */
+  public double getScore() {
+    return score;
+  }
+
+  /** @return the fitted growth in live instances per minute */
+  public double getSlope() {
+    return slope;
+  }
+
+  /** @return the fitted growth in live bytes per minute */
+  public double getBytesSlope() {
+    return bytesSlope;
+  }
+
+  /**
+   * @return 1.0 if every sweep saw more bytes than the prior sweep,
+   * down to -1.0 if every sweep saw fewer, and near 0.0 if mostly
+   * unchanged, weighted to recent sweeps
+   */
+  public double getMonotonicity() {
+    return monotonicity;
+  }
+
+  /** @return the live instances at the latest sweep */
+  public long getInstances() {
+    return live;
+  }
+
+  /** @return the live bytes at the latest sweep */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /** @return the number of sweeps observed */
+  public int getSamples() {
+    return samples;
+  }
+
+  public String toString() {
+    return
+      "(leak_suspect"+
+      (classname != null ? " class="+classname : " site="+site)+
+      " score="+score+
+      " slope="+slope+
+      " bytes_slope="+bytesSlope+
+      " monotonicity="+monotonicity+
+      " live="+live+
+      " bytes="+bytes+
+      " samples="+samples+
+      ")";
+  }
+}
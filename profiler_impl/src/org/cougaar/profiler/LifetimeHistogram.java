@@ -0,0 +1,113 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * A log-scale histogram of the ages of garbage collected
+ * instances, in milliseconds.
+ * <p>
+ * Bucket zero counts ages under 1 millisecond, and bucket "b"
+ * counts ages in [2^(b-1), 2^b) milliseconds.  Counts are weighted
+ * by "InstanceStats.getSampleWeight()".
+ * <p>
+ * Ages are only known for instances with an allocation time, so
+ * Options "time" must be enabled.  The age is measured when the
+ * MemoryStatsImpl cleanup thread finds the instance gc'ed, so it
+ * may overstate the true age by up to REAP_FREQUENCY.
+ *
+ * @see ClassStats#getLifetimes()
+ * @see AllocationSite#getLifetimes()
+ */
+public final class LifetimeHistogram {
+
+  /** Number of buckets, which covers ages up to 2^40 millis */
+  public static final int BUCKETS = 42;
+
+  private final Counters counters = new Counters(BUCKETS, 1);
+
+  LifetimeHistogram() { }
+
+  // for use by ClassStats: count a gc'ed instance
+  void add(long age, int weight) {
+    counters.add(0, getBucket(age), weight);
+  }
+
+  /** @return the bucket for the given age */
+  public static int getBucket(long age) {
+    int b = 64 - Long.numberOfLeadingZeros(Math.max(age, 0));
+    return Math.min(b, BUCKETS - 1);
+  }
+
+  /** @return the exclusive upper age limit of a bucket */
+  public static long getBucketLimit(int b) {
+    return (b >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << b));
+  }
+
+  /** @return the weighted count in a bucket */
+  public long getCount(int b) {
+    return counters.get(b);
+  }
+
+  /** @return the weighted count of all buckets */
+  public long getCount() {
+    long sum = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      sum += counters.get(b);
+    }
+    return sum;
+  }
+
+  /**
+   * @param p the fraction, e.g. 0.5 for the median
+   * @return the upper age limit of the bucket containing the given
+   * percentile, or -1 if empty
+   */
+  public long getPercentile(double p) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      counts[b] = counters.get(b);
+      total += counts[b];
+    }
+    if (total <= 0) {
+      return -1;
+    }
+    long target = (long) Math.ceil(p * total);
+    long sum = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      sum += counts[b];
+      if (sum >= target && sum > 0) {
+        return getBucketLimit(b);
+      }
+    }
+    return getBucketLimit(BUCKETS - 1);
+  }
+
+  public String toString() {
+    return
+      "(lifetimes"+
+      " count="+getCount()+
+      " p50="+getPercentile(0.5)+
+      " p90="+getPercentile(0.9)+
+      " p99="+getPercentile(0.99)+
+      ")";
+  }
+}
@@ -30,4 +30,77 @@ public interface MemoryStats {
       String classname,
       int bytesEach,
       Options options);
+
+  /**
+   * Update all the ClassTrackers, as if "ClassTracker.update()"
+   * had been called on each one.
+   *
+   * @param parallelism the number of threads to use, up to the number
+   * of processors, or zero for the default
+   */
+  void updateAll(int parallelism);
+
+  /**
+   * Rank the classes and allocation sites whose live memory has
+   * grown most steadily over the recent background sweeps.
+   *
+   * @param max the maximum number of suspects to return
+   * @return suspects in decreasing score order
+   */
+  LeakSuspect[] getLeakSuspects(int max);
+
+  /**
+   * Capture the current per-class, per-agent and per-site counters,
+   * which can later be compared with "Snapshot.diff(Snapshot)".
+   */
+  Snapshot snapshot();
+
+  /**
+   * Change the profiling options of the matching classes at
+   * runtime, including classes that are registered later.
+   * <p>
+   * The pattern is either a class name or a prefix ending in '.' or
+   * '$', e.g. "org.foo." for a package and its subpackages.  If
+   * several patterns match a class then the longest one wins.  See
+   * "ClassTracker.setOptions" for the limits on the sample ratio and
+   * size/capacity stats.  A class that registers after the pattern
+   * is set gets the pattern's ratio capped at its registered ratio.
+   *
+   * @param options the new options, or null to remove the pattern
+   * @return the number of registered classes that were changed
+   * @throws IllegalArgumentException if the sample ratio exceeds the
+   * registered ratio of a matching class
+   */
+  int setOptions(String pattern, Options options);
+
+  /**
+   * Describe the profiler's measured CPU overhead and the detail
+   * that was shed to stay under budget.
+   *
+   * @return the status, or null if the governor is disabled
+   */
+  String getGovernorStatus();
+
+  /**
+   * Get the counters of the profiler's own work and memory for each
+   * class, to judge the profiler's overhead.
+   *
+   * @return the metrics of every ClassTracker, in no particular
+   * order
+   */
+  SelfMetrics[] getSelfMetrics();
+
+  /**
+   * @return the estimated bytes of the interned allocation stacks,
+   * which are shared by all classes and excluded from the
+   * "getSelfMetrics()" bytes
+   */
+  long getAllocationSiteBytes();
+
+  /**
+   * @return the number of allocations that were dropped because
+   * they overflowed the BOOTSTRAP_BUFFER_SIZE during the startup
+   * delay, which are missing from the counts
+   */
+  int getStartupDropped();
 }
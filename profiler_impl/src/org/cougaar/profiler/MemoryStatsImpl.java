@@ -32,33 +32,206 @@ implements MemoryStats
 {
   private static long startupTime;
   private static MemoryStats instance;
+  private static Bootstrap bootstrap;
+  private static int startup_dropped;
 
+  // serializes registration
   private static final Object lock = new Object();
-  private static String[] names;
-  private static ClassTracker[] trackers;
-  private static int count;
+  private static final TrackerRegistry registry = new TrackerRegistry();
+  private static boolean started;
+
+  // runtime options by class name or prefix, guarded by "lock".
+  // There are usually few, so we scan them.
+  private static String[] patterns = new String[4];
+  private static Options[] pattern_options = new Options[4];
+  private static int num_patterns;
 
   MemoryStatsImpl() { }
 
   public String[] getClassNames() {
-    synchronized (lock) {
-      String[] ret = new String[count];
-      for (int i = 0; i < count; i++) {
-        ret[i] = names[i];
+    return registry.getClassNames();
+  }
+
+  public ClassTracker getClassTracker(String classname) {
+    return registry.get(classname);
+  }
+
+  public void updateAll(int parallelism) {
+    ParallelUpdate.updateAll(getClassTrackers(), parallelism);
+  }
+
+  public LeakSuspect[] getLeakSuspects(int max) {
+    return LeakDetector.getSuspects(getClassTrackers(), max);
+  }
+
+  public Snapshot snapshot() {
+    long now = System.currentTimeMillis();
+    Snapshot.Builder b = new Snapshot.Builder();
+    ClassTracker[] cts = getClassTrackers();
+    for (int i = 0; i < cts.length; i++) {
+      ClassTracker ct = cts[i];
+      double ratio = ct.getOptions().getSampleRatio();
+      if (ratio <= 0.0) {
+        continue;
+      }
+      String cl = ct.getClassName();
+      int bytesEach = ct.getObjectSize();
+      addStats(
+          b, cl, Snapshot.CLASS, ct.getOverallStats(), ratio,
+          bytesEach);
+      String[] agents = ct.getAgentNames();
+      for (int j = 0; j < agents.length; j++) {
+        ClassStats acs = ct.getAgentStats(agents[j]);
+        if (acs != null) {
+          addStats(
+              b, cl+" @ "+agents[j], Snapshot.AGENT, acs, ratio,
+              bytesEach);
+        }
       }
-      return ret;
     }
+    LeakDetector.addSites(b);
+    return b.build(now);
   }
 
-  public ClassTracker getClassTracker(String classname) {
+  public String getGovernorStatus() {
+    return
+      (Configure.GOVERNOR_BUDGET > 0 ? Governor.getStatus() : null);
+  }
+
+  public SelfMetrics[] getSelfMetrics() {
+    ClassTracker[] cts = getClassTrackers();
+    SelfMetrics[] ret = new SelfMetrics[cts.length];
+    for (int i = 0; i < cts.length; i++) {
+      ret[i] = cts[i].getSelfMetrics();
+    }
+    return ret;
+  }
+
+  public long getAllocationSiteBytes() {
+    return AllocationSites.getBytes();
+  }
+
+  public int getStartupDropped() {
+    synchronized (MemoryStatsImpl.class) {
+      return startup_dropped;
+    }
+  }
+
+  public int setOptions(String pattern, Options options) {
     synchronized (lock) {
-      for (int i = 0; i < count; i++) {
-        if (classname.equals(names[i])) {
-          return trackers[i];
+      if (options != null) {
+        // reject a ratio that we can't apply, see
+        // "ClassTracker.setOptions"
+        ClassTracker[] cts = getClassTrackers();
+        for (int j = 0; j < cts.length; j++) {
+          ClassTracker ct = cts[j];
+          if (matches(pattern, ct.getClassName()) &&
+              options.getSampleRatio() >
+              ct.getOptions().getSampleRatio()) {
+            throw new IllegalArgumentException(
+                "Sample ratio "+options.getSampleRatio()+
+                " exceeds the registered ratio "+
+                ct.getOptions().getSampleRatio()+
+                " of "+ct.getClassName());
+          }
         }
       }
-      return null;
+
+      // replace or remove the pattern
+      int i = 0;
+      while (i < num_patterns && !pattern.equals(patterns[i])) {
+        i++;
+      }
+      if (options == null) {
+        if (i >= num_patterns) {
+          return 0;
+        }
+        num_patterns--;
+        patterns[i] = patterns[num_patterns];
+        pattern_options[i] = pattern_options[num_patterns];
+        patterns[num_patterns] = null;
+        pattern_options[num_patterns] = null;
+      } else {
+        if (i >= patterns.length) {
+          String[] new_p = new String[2 * patterns.length];
+          Options[] new_o = new Options[new_p.length];
+          System.arraycopy(patterns, 0, new_p, 0, num_patterns);
+          System.arraycopy(pattern_options, 0, new_o, 0, num_patterns);
+          patterns = new_p;
+          pattern_options = new_o;
+        }
+        if (i >= num_patterns) {
+          num_patterns++;
+        }
+        patterns[i] = pattern;
+        pattern_options[i] = options;
+      }
+
+      // apply to the registered classes
+      int ret = 0;
+      ClassTracker[] cts = getClassTrackers();
+      for (int j = 0; j < cts.length; j++) {
+        ClassTracker ct = cts[j];
+        String classname = ct.getClassName();
+        if (matches(pattern, classname)) {
+          ct.setOptions(limit(findOptions(classname), ct));
+          ret++;
+        }
+      }
+      return ret;
+    }
+  }
+
+  // the options of the longest matching pattern, or null.  The
+  // caller holds "lock".
+  private static Options findOptions(String classname) {
+    Options ret = null;
+    int len = -1;
+    for (int i = 0; i < num_patterns; i++) {
+      String p = patterns[i];
+      if (p.length() > len && matches(p, classname)) {
+        ret = pattern_options[i];
+        len = p.length();
+      }
+    }
+    return ret;
+  }
+
+  // cap the ratio of a pattern's options at the class's registered
+  // ratio, for a class that registered or was uncovered after the
+  // pattern was set
+  private static Options limit(Options o, ClassTracker ct) {
+    double max = ct.getOptions().getSampleRatio();
+    if (o == null || o.getSampleRatio() <= max) {
+      return o;
     }
+    return new Options(o.getFlags(), max);
+  }
+
+  private static boolean matches(String pattern, String classname) {
+    int n = pattern.length();
+    if (n > 0) {
+      char ch = pattern.charAt(n - 1);
+      if (ch == '.' || ch == '$') {
+        return classname.startsWith(pattern);
+      }
+    }
+    return classname.equals(pattern);
+  }
+
+  private static void addStats(
+      Snapshot.Builder b,
+      String name,
+      int kind,
+      ClassStats cs,
+      double ratio,
+      int bytesEach) {
+    double live = cs.getScaledInstances() / ratio;
+    double allocated = 
+      live + cs.getScaledGarbageCollected() / ratio;
+    double bytes = 
+      live * bytesEach + cs.getSumCapacityBytes() / ratio;
+    b.add(name, kind, live, allocated, bytes);
   }
 
   public static synchronized MemoryStats getInstance() {
@@ -78,55 +251,77 @@ implements MemoryStats
       }
       long diff = (now - startupTime);
       if (diff < Configure.DELAY_AFTER_STARTUP) {
-        // assume we're the root classloader.  It's fine to
-        // allocate instances since they're all static fields.
-        // It's not clear if this is safe; we need to test with
-        // more complex classloader namespace configurations.
-        //
-        // this may be fixable by queueing "add(o)" calls... 
-        return new MemoryStatsImpl();
+        // buffer the registrations and allocations until we can
+        // find the real instance, see Bootstrap
+        if (bootstrap == null) {
+          bootstrap = new Bootstrap(startupTime);
+        }
+        return bootstrap;
       }
     }
 
     // "Absolute Singleton" pattern by Inigo Surguy (www.surguy.net)
     if (instance == null) {
-      ClassLoader loader = lock.getClass().getClassLoader();
-      if (loader == null || loader.toString().startsWith("sun.")) {
+      // find the parent classloader's copy of this class, if any
+      Class parentClass = null;
+      ClassLoader loader = MemoryStatsImpl.class.getClassLoader();
+      if (loader != null && !loader.toString().startsWith("sun.")) {
+        try {
+          parentClass = Class.forName(
+              "org.cougaar.profiler.MemoryStatsImpl",
+              true,
+              loader.getParent());
+        } catch (ClassNotFoundException e) {
+          // none
+        }
+      }
+      if (parentClass == null) {
         // root classloader
         instance = new MemoryStatsImpl();
       } else {
-        // create proxy
+        // use the parent's instance
         try {
-          ClassLoader parentLoader = loader.getParent();
-          final Class parentClass = parentLoader.loadClass(
-              "org.cougaar.profiler.MemoryStatsImpl");
           Method getInstanceMethod = parentClass.getDeclaredMethod(
               "getInstance", new Class[] { });
-          final Object parentInstance = getInstanceMethod.invoke(
+          Object parentInstance = getInstanceMethod.invoke(
               null, new Object[] { } );
           if (parentInstance == null) {
             throw new RuntimeException("Parent instance is null");
           }
-          Class ifc = Class.forName("org.cougaar.profiler.MemoryStats");
-          InvocationHandler ih = new InvocationHandler() {
-            public Object invoke(
-                Object proxy,
-                Method method,
-                Object[] args) throws Throwable {
-              Method delegateMethod = 
-                parentClass.getMethod(
-                    method.getName(), method.getParameterTypes());
-              return delegateMethod.invoke(parentInstance, args);
+          if (parentInstance.getClass().getName().equals(
+                "org.cougaar.profiler.Bootstrap")) {
+            // the parent is still in its startup delay, so keep
+            // buffering until it has its real instance
+            if (bootstrap == null) {
+              bootstrap = new Bootstrap(startupTime);
             }
-          };
-          instance = (MemoryStats) Proxy.newProxyInstance(
-                loader, new Class[] { ifc }, ih);
+            return bootstrap;
+          }
+          if (parentInstance instanceof MemoryStats) {
+            // our "MemoryStats" interface was loaded by a shared
+            // parent classloader, so we call the parent directly
+            instance = (MemoryStats) parentInstance;
+          } else {
+            // our profiler classes aren't shared with the parent, so
+            // the parent's trackers aren't our "MemoryTracker" type
+            // and can't be used by our profiled classes.  Act as the
+            // root for our classloader.
+            instance = new MemoryStatsImpl();
+          }
         } catch (Exception e) {
-          throw new RuntimeException("Unable to create proxy", e);
+          throw new RuntimeException("Unable to find parent instance", e);
         }
       }
     }
 
+    if (bootstrap != null) {
+      // replay the allocations that were buffered during the delay
+      Bootstrap b = bootstrap;
+      bootstrap = null;
+      b.replay(instance);
+      startup_dropped += b.getDropped();
+    }
+
     return instance;
   }
 
@@ -138,55 +333,78 @@ implements MemoryStats
       return null;
     }
 
+    // find, without locking
+    ClassTracker ct = registry.get(classname);
+    if (ct != null) {
+      return ct;
+    }
+
     synchronized (lock) {
-      // find
-      for (int i = 0; i < count; i++) {
-        if (classname.equals(names[i])) {
-          return trackers[i];
-        }
-      }
-      // ensure capacity
-      if (count == 0) {
-        names = new String[17];
-        trackers = new ClassTracker[17];
-      } else if ((count + 1) >= names.length) {
-        int newCapacity = (count << 1);
-        String[] new_cn = new String[newCapacity];
-        ClassTracker[] new_ct = new ClassTracker[newCapacity];
-        for (int i = 0; i < count; i++) {
-          new_cn[i] = names[i];
-          new_ct[i] = trackers[i];
-        }
-        names = new_cn;
-        trackers = new_ct;
+      // find again, in case another thread added it
+      ct = registry.get(classname);
+      if (ct != null) {
+        return ct;
       }
       // add
-      ClassTracker ct = ClassTracker.newClassTracker(
+      ct = ClassTracker.newClassTracker(
           classname,
           bytesEach,
           options);
-      names[count] = classname;
-      trackers[count] = ct;
-      count++;
+      if (num_patterns > 0) {
+        Options o = findOptions(classname);
+        if (o != null) {
+          ct.setOptions(limit(o, ct));
+        }
+      }
+      registry.add(ct);
+      if (!started) {
+        started = true;
+        startThread();
+      }
       return ct;
     }
   }
 
-  static {
+  private static void startThread() {
     // launch thread to periodically update our class trackers.
     //
-    // This is important for GC, to make sure we eventually
+    // This is important for GC, to make sure we promptly count and
     // free InstanceStats that reference GC'd objects.
     //
-    // This thread also updates the "size" class stats.
+    // This thread also incrementally sweeps the trackers to update
+    // the "size" class stats.
+    //
+    // We start the thread when the first tracker is registered, as
+    // opposed to our static init, so a classloader copy of this
+    // class that only proxies to the root copy doesn't run an idle
+    // thread.
     Runnable r = new Runnable() {
       public void run() {
+        Sweeper sweeper = new Sweeper(
+            System.currentTimeMillis() + Configure.UPDATE_FREQUENCY);
+        long nextHistory = 0;
+        long nextGovernor = 0;
         while (true) {
           try {
-            Thread.sleep(Configure.UPDATE_FREQUENCY);
+            Thread.sleep(Configure.REAP_FREQUENCY);
           } catch (InterruptedException ex) {
           }
-          timerUpdate();
+          long t =
+            (Configure.GOVERNOR_BUDGET > 0 ? System.nanoTime() : 0);
+          timerReap();
+          long now = System.currentTimeMillis();
+          if (Configure.HISTORY_SIZE > 0 && now >= nextHistory) {
+            timerHistory(now);
+            nextHistory = now + Configure.HISTORY_PERIOD;
+          }
+          sweeper.tick(getClassTrackers(), now);
+          if (Configure.GOVERNOR_BUDGET > 0) {
+            Governor.addThreadTime(System.nanoTime() - t);
+            if (now >= nextGovernor) {
+              Governor.tick(getClassTrackers());
+              nextGovernor = now + Configure.GOVERNOR_PERIOD;
+            }
+          }
         }
       }
     };
@@ -196,19 +414,35 @@ implements MemoryStats
     t.start();
   }
 
-  private static void timerUpdate() {
-    ClassTracker[] cts;
-    synchronized (lock) {
-      cts = new ClassTracker[count];
-      for (int i = 0; i < count; i++) {
-        cts[i] = trackers[i];
+  private static void timerReap() {
+    if (Configure.BUFFER_SIZE > 0) {
+      // flush buffered allocations from idle threads
+      AllocationBuffer.drainAll();
+    }
+    ClassTracker[] cts = getClassTrackers();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < cts.length; i++) {
+      try {
+        cts[i].reap();
+        if (Configure.ADAPTIVE_SAMPLE_BUDGET > 0) {
+          cts[i].timerAdapt(now);
+        }
+      } catch (Exception e) {
       }
     }
+  }
+
+  private static void timerHistory(long now) {
+    ClassTracker[] cts = getClassTrackers();
     for (int i = 0; i < cts.length; i++) {
       try {
-        cts[i].timerUpdate();
+        cts[i].timerHistory(now);
       } catch (Exception e) {
       }
     }
   }
+
+  private static ClassTracker[] getClassTrackers() {
+    return registry.getClassTrackers();
+  }
 }
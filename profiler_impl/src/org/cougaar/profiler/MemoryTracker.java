@@ -46,5 +46,72 @@ public abstract class MemoryTracker {
     return NULL;
   }
 
+  /**
+   * Get a tracker for options that were evaluated at transform time
+   * by "SelfProfiler --inline=true".
+   * <p>
+   * The flags and sample ratio are constants in the class init, so
+   * a profiled class doesn't call the options factory as it loads.
+   * Classes with the same constants share an interned Options.
+   */
+  public static final MemoryTracker getInstance(
+      String classname, int bytesEach, int flags, double sampleRatio) {
+    return getInstance(
+        classname, bytesEach, intern(flags, sampleRatio));
+  }
+
+  // interned inlined options, which are usually a handful of
+  // distinct constants shared by every profiled class
+  private static Options[] interned = new Options[8];
+  private static int num_interned;
+
+  private static synchronized Options intern(
+      int flags, double sampleRatio) {
+    for (int i = 0; i < num_interned; i++) {
+      Options o = interned[i];
+      if (o.getFlags() == flags && o.getSampleRatio() == sampleRatio) {
+        return o;
+      }
+    }
+    if (num_interned >= interned.length) {
+      Options[] tmp = new Options[2 * num_interned];
+      System.arraycopy(interned, 0, tmp, 0, num_interned);
+      interned = tmp;
+    }
+    Options o = new Options(flags, sampleRatio);
+    interned[num_interned++] = o;
+    return o;
+  }
+
+  /**
+   * Register the "new" sites of a class transformed by
+   * "SelfProfiler --sites=true", which is called once by its class
+   * init.
+   * <p>
+   * Each site is a transform-time constant:<pre>
+   *   CLASS|METHOD|FILE|LINE|BCI|TYPE
+   * </pre>
+   * where TYPE is the class that the "new" constructs.
+   *
+   * @return the site id of the first site, where the class's site
+   *   "i" is this base plus "i"
+   */
+  public static final int registerAllocationSites(String[] sites) {
+    return AllocationSites.register(sites);
+  }
+
+  /**
+   * Set the allocation site of the next "TYPE" instance constructed
+   * by this thread, which is called by a "SelfProfiler --sites=true"
+   * class just before each "new TYPE(..)" calls its constructor.
+   * <p>
+   * If the instance is tracked with its stack then it's given this
+   * site instead, so its stack is never captured.  Otherwise the
+   * site is dropped once an enclosing constructor takes its own.
+   */
+  public static final void setAllocationSite(int site) {
+    AllocationSites.setPending(site);
+  }
+
   public abstract void add(Object o);
 }
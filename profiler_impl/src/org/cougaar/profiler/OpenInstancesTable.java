@@ -0,0 +1,215 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * An InstancesTable that uses open addressing with linear probing.
+ * <p>
+ * The entries are kept in an array parallel to an array of their
+ * hashcodes, so probing and rehashing only touch the two arrays and
+ * never dereference the entries.  Removed entries leave a tombstone
+ * unless the following slot is empty, and the tombstones are
+ * compacted out the next time the table is rehashed.
+ * <p>
+ * Compared to the ChainedInstancesTable this avoids walking an
+ * average chain of Configure.REHASH_FACTOR entries per lookup, at
+ * the cost of two array slots per entry plus the unused fill.
+ */
+abstract class OpenInstancesTable extends InstancesTable {
+
+  // marks a removed entry, which must be probed past.
+  private static final InstanceStats TOMBSTONE =
+    new InstanceStats(null, null);
+
+  // minimum table length, must be power of two
+  private static final int MIN_CAPACITY = 16;
+
+  // entries, which may be null, TOMBSTONE, or an InstanceStats
+  private InstanceStats[] objs;
+  // "objs[i].hash", to avoid dereferencing the entries
+  private int[] hashes;
+  private int objs_size;
+  private int tombstones;
+  private int objs_threshold;
+  private int resizes;
+
+  // cheap iterator:
+  private int iter_i;
+  private int iter_max;
+
+  public OpenInstancesTable() {
+  }
+
+  public final int size() {
+    return objs_size;
+  }
+
+  public final int capacity() {
+    return (objs == null ? 0 : objs.length);
+  }
+
+  public final int getResizeCount() {
+    return resizes;
+  }
+
+  public final void sweep(int from, int to, Visitor v) {
+    if (objs == null) {
+      return;
+    }
+    int max = Math.min(to, objs.length);
+    for (int i = from; i < max; i++) {
+      InstanceStats is = objs[i];
+      if (is == null || is == TOMBSTONE) {
+        continue;
+      }
+      if (is.get() == null) {
+        // gc'ed
+        clearSlot(i);
+        gc(is);
+        continue;
+      }
+      v.visit(is);
+    }
+  }
+
+  public final void startIterator() {
+    iter_i = -1;
+    iter_max = (objs == null ? 0 : objs.length);
+  }
+  public final InstanceStats next() {
+    while (++iter_i < iter_max) {
+      InstanceStats is = objs[iter_i];
+      if (is == null || is == TOMBSTONE) {
+        continue;
+      }
+      if (is.get() == null) {
+        // gc'ed
+        clearSlot(iter_i);
+        gc(is);
+        continue;
+      }
+      return is;
+    }
+    return null;
+  }
+
+  public final void put(InstanceStats new_is) {
+    if (objs == null ||
+        (objs_size + tombstones) >= objs_threshold) {
+      // rehash, scan for gc'ed entries
+      rehash();
+    }
+    int mask = objs.length - 1;
+    int i = new_is.hash & mask;
+    while (true) {
+      InstanceStats is = objs[i];
+      if (is == null) {
+        break;
+      }
+      if (is == TOMBSTONE) {
+        tombstones--;
+        break;
+      }
+      i = (i + 1) & mask;
+    }
+    objs[i] = new_is;
+    hashes[i] = new_is.hash;
+    allocate(new_is);
+    objs_size++;
+  }
+
+  public final boolean remove(InstanceStats dead) {
+    if (objs == null) {
+      return false;
+    }
+    int mask = objs.length - 1;
+    int i = dead.hash & mask;
+    while (true) {
+      InstanceStats is = objs[i];
+      if (is == null) {
+        return false;
+      }
+      if (is == dead) {
+        clearSlot(i);
+        gc(dead);
+        return true;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  private final void clearSlot(int i) {
+    // a tombstone is only needed if a later entry may have probed
+    // past this slot
+    if (objs[(i + 1) & (objs.length - 1)] == null) {
+      objs[i] = null;
+    } else {
+      objs[i] = TOMBSTONE;
+      tombstones++;
+    }
+    hashes[i] = 0;
+    objs_size--;
+  }
+
+  private final void rehash() {
+    InstanceStats[] oldObjs = objs;
+    int[] oldHashes = hashes;
+    resizes++;
+    int oldCapacity = (oldObjs == null ? 0 : oldObjs.length);
+
+    // drop gc'ed entries, then size the table to be at most 1/3
+    // full, so we don't rehash again until it's 2/3 full.  If the
+    // old table was mostly tombstones then this compacts it without
+    // growing.
+    for (int i = 0; i < oldCapacity; i++) {
+      InstanceStats is = oldObjs[i];
+      if (is != null && is != TOMBSTONE && is.get() == null) {
+        oldObjs[i] = TOMBSTONE;
+        gc(is);
+        objs_size--;
+      }
+    }
+    int newCapacity = MIN_CAPACITY;
+    while ((newCapacity / 3) <= (objs_size + 1)) {
+      newCapacity <<= 1;
+    }
+    InstanceStats[] newObjs = new InstanceStats[newCapacity];
+    int[] newHashes = new int[newCapacity];
+    int mask = newCapacity - 1;
+    for (int i = 0; i < oldCapacity; i++) {
+      InstanceStats is = oldObjs[i];
+      if (is == null || is == TOMBSTONE) {
+        continue;
+      }
+      int h = oldHashes[i];
+      int j = h & mask;
+      while (newObjs[j] != null) {
+        j = (j + 1) & mask;
+      }
+      newObjs[j] = is;
+      newHashes[j] = h;
+    }
+    objs = newObjs;
+    hashes = newHashes;
+    tombstones = 0;
+    objs_threshold = newCapacity - (newCapacity / 3);
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * Compiled profiling rules, which map class name patterns to
+ * Options for an options factory.
+ * <p>
+ * Each rule looks like:<pre>
+ *   [MODULE:]PATTERN = FLAGS
+ * </pre> where the PATTERN is either a class name, e.g.
+ * "java.util.HashMap", or a prefix ending in '*', e.g.
+ * "java.util.*" or "java.util.HashMap$*".  The optional MODULE
+ * limits the rule to classes transformed with that "--module"
+ * name.  The FLAGS are any of "time", "stack", "size",
+ * "capacity", "context" and "ratio=DOUBLE", separated by spaces or
+ * commas, or "off" to not profile the class.  The default ratio is
+ * 1.0.
+ * <p>
+ * A class matches the rule with the longest matching pattern,
+ * where a class name beats a prefix of the same length.  Any rule
+ * for the class's module beats the rules without a module.  A
+ * class that matches no rule is not profiled.
+ * <p>
+ * The rules are compiled into an array-based trie, so
+ * "getOptions" is O(length of the module and class name)
+ * regardless of the number of rules, and doesn't allocate.
+ * Compiling does allocate, so a factory should compile its rules
+ * in its static init and not profile classes that are loaded
+ * before then:<pre>
+ *   public class MyConfig {
+ *     private static final OptionsRules RULES =
+ *       OptionsRules.compile(new String[] {
+ *         "java.util.HashMap = time stack size capacity",
+ *         "java.* = size capacity ratio=0.01",
+ *       });
+ *     public static final Options getOptions(
+ *         String module, String classname) {
+ *       OptionsRules r = RULES;
+ *       return (r == null ? null : r.getOptions(module, classname));
+ *     }
+ *   }
+ * </pre>
+ * Alternately "SelfProfiler --inline=true" evaluates the factory at
+ * transform time, so the rules are never compiled at runtime.
+ */
+public final class OptionsRules {
+
+  // module rules are keyed by
+  //   MODULE_SEP + module + MODULE_SEP + pattern
+  // which can't collide with a class name
+  private static final char MODULE_SEP = '\u0000';
+
+  // trie nodes, where node 0 is the root.  The children of node "n"
+  // are edges [first[n], first[n+1]), sorted by char.
+  private final int[] first;
+  private final char[] edge_chars;
+  private final int[] edge_nodes;
+
+  // per node, the index into "options" of the class name rule and
+  // prefix rule that end at the node, or -1
+  private final int[] exact;
+  private final int[] prefix;
+
+  // per rule, where "off" is null
+  private final Options[] options;
+
+  private OptionsRules(
+      int[] first,
+      char[] edge_chars,
+      int[] edge_nodes,
+      int[] exact,
+      int[] prefix,
+      Options[] options) {
+    this.first = first;
+    this.edge_chars = edge_chars;
+    this.edge_nodes = edge_nodes;
+    this.exact = exact;
+    this.prefix = prefix;
+    this.options = options;
+  }
+
+  /**
+   * Parse and compile rules.
+   *
+   * @throws IllegalArgumentException if a rule is malformed or
+   *   duplicated
+   */
+  public static OptionsRules compile(String[] rules) {
+    Builder b = new Builder();
+    int n = (rules == null ? 0 : rules.length);
+    Options[] options = new Options[n];
+    for (int i = 0; i < n; i++) {
+      String rule = rules[i];
+      int eq = rule.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException(
+            "Expecting \"[MODULE:]PATTERN = FLAGS\", not \""+rule+"\"");
+      }
+      String pattern = rule.substring(0, eq).trim();
+      options[i] = parseOptions(rule, rule.substring(eq + 1));
+
+      String module = null;
+      int colon = pattern.indexOf(':');
+      if (colon >= 0) {
+        module = pattern.substring(0, colon).trim();
+        pattern = pattern.substring(colon + 1).trim();
+      }
+      boolean is_prefix = pattern.endsWith("*");
+      if (is_prefix) {
+        pattern = pattern.substring(0, pattern.length() - 1);
+      }
+      if (pattern.indexOf('*') >= 0) {
+        throw new IllegalArgumentException(
+            "Only a trailing '*' is supported: \""+rule+"\"");
+      }
+
+      int node = 0;
+      if (module != null) {
+        node = b.insert(node, MODULE_SEP);
+        for (int j = 0; j < module.length(); j++) {
+          node = b.insert(node, module.charAt(j));
+        }
+        node = b.insert(node, MODULE_SEP);
+      }
+      for (int j = 0; j < pattern.length(); j++) {
+        node = b.insert(node, pattern.charAt(j));
+      }
+      int[] ends = (is_prefix ? b.prefix : b.exact);
+      if (ends[node] >= 0) {
+        throw new IllegalArgumentException(
+            "Duplicate rule: \""+rule+"\"");
+      }
+      ends[node] = i;
+    }
+    return b.build(options);
+  }
+
+  /**
+   * @param module optional module name, or null
+   * @param classname the class name
+   * @return the options of the best matching rule, or null if the
+   *   class shouldn't be profiled
+   */
+  public Options getOptions(String module, String classname) {
+    if (module != null) {
+      // find the module's subtree
+      int node = child(0, MODULE_SEP);
+      for (int i = 0, n = module.length(); i < n && node >= 0; i++) {
+        node = child(node, module.charAt(i));
+      }
+      if (node >= 0) {
+        node = child(node, MODULE_SEP);
+      }
+      if (node >= 0) {
+        int i = match(node, classname);
+        if (i >= 0) {
+          return options[i];
+        }
+      }
+    }
+    int i = match(0, classname);
+    return (i < 0 ? null : options[i]);
+  }
+
+  // @return the index of the longest matching rule below "node", or
+  // -1
+  private int match(int node, String classname) {
+    int best = -1;
+    for (int i = 0, n = classname.length(); i < n; i++) {
+      if (prefix[node] >= 0) {
+        best = prefix[node];
+      }
+      node = child(node, classname.charAt(i));
+      if (node < 0) {
+        return best;
+      }
+    }
+    if (exact[node] >= 0) {
+      return exact[node];
+    }
+    if (prefix[node] >= 0) {
+      return prefix[node];
+    }
+    return best;
+  }
+
+  private int child(int node, char ch) {
+    int lo = first[node];
+    int hi = first[node + 1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      char c = edge_chars[mid];
+      if (c < ch) {
+        lo = mid + 1;
+      } else if (c > ch) {
+        hi = mid - 1;
+      } else {
+        return edge_nodes[mid];
+      }
+    }
+    return -1;
+  }
+
+  private static Options parseOptions(String rule, String flags) {
+    boolean time = false;
+    boolean stack = false;
+    boolean size = false;
+    boolean capacity = false;
+    boolean context = false;
+    double ratio = 1.0;
+    int n = flags.length();
+    int i = 0;
+    while (i < n) {
+      // next token
+      char ch = flags.charAt(i);
+      if (ch == ' ' || ch == ',' || ch == '\t') {
+        i++;
+        continue;
+      }
+      int j = i + 1;
+      while (j < n) {
+        ch = flags.charAt(j);
+        if (ch == ' ' || ch == ',' || ch == '\t') {
+          break;
+        }
+        j++;
+      }
+      String s = flags.substring(i, j);
+      i = j;
+      if (s.equals("off")) {
+        return null;
+      } else if (s.equals("time")) {
+        time = true;
+      } else if (s.equals("stack")) {
+        stack = true;
+      } else if (s.equals("size")) {
+        size = true;
+      } else if (s.equals("capacity")) {
+        capacity = true;
+      } else if (s.equals("context")) {
+        context = true;
+      } else if (s.startsWith("ratio=")) {
+        try {
+          ratio = Double.parseDouble(s.substring(6));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(
+              "Invalid ratio in \""+rule+"\"");
+        }
+      } else {
+        throw new IllegalArgumentException(
+            "Unknown flag \""+s+"\" in \""+rule+"\"");
+      }
+    }
+    return new Options(time, stack, size, capacity, context, ratio);
+  }
+
+  // a growable trie with linked child lists, which "build" flattens
+  // into sorted arrays
+  private static final class Builder {
+    int num_nodes = 1;
+    int[] child_head = newInts(16);
+    int[] exact = newInts(16);
+    int[] prefix = newInts(16);
+
+    int num_edges;
+    char[] edge_chars = new char[16];
+    int[] edge_nodes = new int[16];
+    int[] edge_next = new int[16];
+
+    // @return the child of "node" for "ch", creating it if necessary
+    int insert(int node, char ch) {
+      for (int e = child_head[node]; e >= 0; e = edge_next[e]) {
+        if (edge_chars[e] == ch) {
+          return edge_nodes[e];
+        }
+      }
+      if (num_nodes >= exact.length) {
+        child_head = grow(child_head);
+        exact = grow(exact);
+        prefix = grow(prefix);
+      }
+      int child = num_nodes++;
+      if (num_edges >= edge_chars.length) {
+        char[] c = new char[2 * edge_chars.length];
+        System.arraycopy(edge_chars, 0, c, 0, num_edges);
+        edge_chars = c;
+        int[] t = new int[c.length];
+        System.arraycopy(edge_nodes, 0, t, 0, num_edges);
+        edge_nodes = t;
+        t = new int[c.length];
+        System.arraycopy(edge_next, 0, t, 0, num_edges);
+        edge_next = t;
+      }
+      int e = num_edges++;
+      edge_chars[e] = ch;
+      edge_nodes[e] = child;
+      edge_next[e] = child_head[node];
+      child_head[node] = e;
+      return child;
+    }
+
+    OptionsRules build(Options[] options) {
+      int[] first = new int[num_nodes + 1];
+      char[] chars = new char[num_edges];
+      int[] nodes = new int[num_edges];
+      int k = 0;
+      for (int n = 0; n < num_nodes; n++) {
+        first[n] = k;
+        // insertion sort this node's edges by char
+        int start = k;
+        for (int e = child_head[n]; e >= 0; e = edge_next[e]) {
+          char ch = edge_chars[e];
+          int j = k++;
+          while (j > start && chars[j - 1] > ch) {
+            chars[j] = chars[j - 1];
+            nodes[j] = nodes[j - 1];
+            j--;
+          }
+          chars[j] = ch;
+          nodes[j] = edge_nodes[e];
+        }
+      }
+      first[num_nodes] = k;
+      int[] ex = new int[num_nodes];
+      int[] px = new int[num_nodes];
+      System.arraycopy(exact, 0, ex, 0, num_nodes);
+      System.arraycopy(prefix, 0, px, 0, num_nodes);
+      return new OptionsRules(first, chars, nodes, ex, px, options);
+    }
+
+    private static int[] newInts(int n) {
+      int[] ret = new int[n];
+      for (int i = 0; i < n; i++) {
+        ret[i] = -1;
+      }
+      return ret;
+    }
+
+    private static int[] grow(int[] a) {
+      int[] ret = newInts(2 * a.length);
+      System.arraycopy(a, 0, ret, 0, a.length);
+      return ret;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updates many ClassTrackers in parallel.
+ * <p>
+ * The first phase collects each tracker's live instances and, for
+ * small trackers, evaluates their size stats.  The second phase
+ * splits the large trackers into UPDATE_SPLIT_SIZE slices, so the
+ * size evaluation of a single huge class is also spread across the
+ * threads.  The slices are then merged and published.
+ * <p>
+ * The tasks run on a shared pool of one daemon thread per processor,
+ * which is created by the first update and kept for later updates.
+ * The parallelism is capped at the number of processors, and if the
+ * pool's threads are busy, e.g. with a concurrent update, the caller
+ * runs the remaining tasks itself.
+ * <p>
+ * The pool's threads, workers and queue nodes are allocated by
+ * "java.util" classes that may be profiled like any other
+ * allocation.  The tasks are submitted without
+ * holding a tracker lock, so this only adds instances to those
+ * classes' trackers.  A failed task is counted and logged, and its
+ * tracker keeps its prior stats.
+ */
+final class ParallelUpdate {
+
+  // the shared worker pool, created on first use
+  private static ThreadPoolExecutor pool;
+
+  private static final AtomicLong failures = new AtomicLong();
+
+  private final ClassTracker[] cts;
+  private final int parallelism;
+
+  // phase two state:
+  private final InstanceStats[][] large;
+  private ClassTracker.Totals[][] parts;
+  private int[] task_large;
+  private int[] task_slice;
+
+  private ParallelUpdate(ClassTracker[] cts, int parallelism) {
+    this.cts = cts;
+    this.parallelism = parallelism;
+    this.large = new InstanceStats[cts.length][];
+  }
+
+  /**
+   * @param parallelism the number of threads, including the caller,
+   * or zero to use the number of processors.  This is capped at the
+   * number of processors.
+   */
+  static void updateAll(ClassTracker[] cts, int parallelism) {
+    if (parallelism <= 0) {
+      parallelism = Configure.UPDATE_PARALLELISM;
+      if (parallelism <= 0) {
+        parallelism = Runtime.getRuntime().availableProcessors();
+      }
+    }
+    // the pool only has a thread per processor
+    parallelism =
+      Math.min(parallelism, Runtime.getRuntime().availableProcessors());
+    (new ParallelUpdate(cts, parallelism)).run();
+  }
+
+  private static synchronized Executor getPool() {
+    if (pool == null) {
+      // keep a thread per processor.  The queue doesn't buffer, so
+      // a task is rejected if all threads are busy
+      int n = Runtime.getRuntime().availableProcessors();
+      final AtomicInteger count = new AtomicInteger();
+      pool = new ThreadPoolExecutor(
+          n,
+          n,
+          60, TimeUnit.SECONDS,
+          new SynchronousQueue(),
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(
+                  r, "MemoryTracker update "+count.getAndIncrement());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+    return pool;
+  }
+
+  private void run() {
+    // collect all, update the small trackers
+    runTasks(cts.length, new Task() {
+      public void run(int i) {
+        ClassTracker ct = cts[i];
+        InstanceStats[] iss = ct.collect();
+        if (iss.length > Configure.UPDATE_SPLIT_SIZE) {
+          large[i] = iss;
+        } else {
+          ct.publish(ct.evaluate(iss, 0, iss.length));
+        }
+      }
+    });
+
+    // split the large trackers into slices
+    int n = 0;
+    parts = new ClassTracker.Totals[cts.length][];
+    for (int i = 0; i < cts.length; i++) {
+      if (large[i] != null) {
+        int slices = 
+          (large[i].length + Configure.UPDATE_SPLIT_SIZE - 1) /
+          Configure.UPDATE_SPLIT_SIZE;
+        parts[i] = new ClassTracker.Totals[slices];
+        n += slices;
+      }
+    }
+    if (n == 0) {
+      return;
+    }
+    task_large = new int[n];
+    task_slice = new int[n];
+    for (int i = 0, j = 0; i < cts.length; i++) {
+      if (parts[i] != null) {
+        for (int k = 0; k < parts[i].length; k++, j++) {
+          task_large[j] = i;
+          task_slice[j] = k;
+        }
+      }
+    }
+    runTasks(n, new Task() {
+      public void run(int j) {
+        int i = task_large[j];
+        int k = task_slice[j];
+        InstanceStats[] iss = large[i];
+        int from = k * Configure.UPDATE_SPLIT_SIZE;
+        int to = Math.min(from + Configure.UPDATE_SPLIT_SIZE, iss.length);
+        parts[i][k] = cts[i].evaluate(iss, from, to);
+      }
+    });
+
+    // merge and publish
+    for (int i = 0; i < cts.length; i++) {
+      ClassTracker.Totals[] p = parts[i];
+      if (p == null || p[0] == null) {
+        continue;
+      }
+      for (int k = 1; k < p.length; k++) {
+        if (p[k] != null) {
+          p[0].add(p[k]);
+        }
+      }
+      cts[i].publish(p[0]);
+    }
+  }
+
+  // run tasks [0, n) on up to "parallelism" threads, including the
+  // caller, and wait for them to complete
+  private void runTasks(final int n, final Task task) {
+    final AtomicInteger next = new AtomicInteger();
+    final Runnable r = new Runnable() {
+      public void run() {
+        while (true) {
+          int i = next.getAndIncrement();
+          if (i >= n) {
+            return;
+          }
+          try {
+            task.run(i);
+          } catch (Exception e) {
+            long count = failures.incrementAndGet();
+            System.err.println(
+                "MemoryTracker update task failed ("+count+
+                " total failures):");
+            e.printStackTrace();
+          }
+        }
+      }
+    };
+    int nworkers = Math.max(Math.min(parallelism, n) - 1, 0);
+    final CountDownLatch done = new CountDownLatch(nworkers);
+    Executor ex = getPool();
+    for (int i = 0; i < nworkers; i++) {
+      try {
+        ex.execute(new Runnable() {
+          public void run() {
+            try {
+              r.run();
+            } finally {
+              done.countDown();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // the caller runs the remaining tasks
+        done.countDown();
+      }
+    }
+    r.run();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private interface Task {
+    void run(int i);
+  }
+}
@@ -28,14 +28,15 @@
 
 package org.cougaar.profiler;
 
-import sun.misc.AtomicLong;
-
 /**
  * Trimmed "java.util.Random" for use within the profiler, since we
  * may want to profile "java.util.Random".
+ * <p>
+ * Unlike "java.util.Random" this is not thread-safe, since each
+ * thread's Sampler has its own instance.
  */
 public final class Random {
-  private final AtomicLong seed;
+  private long seed;
 
   private final static long multiplier = 0x5DEECE66DL;
   private final static long addend = 0xBL;
@@ -46,10 +47,7 @@ public final class Random {
   }
 
   public Random(long init) {
-    seed = AtomicLong.newAtomicLong(0L);
-    init = (init ^ multiplier) & mask;
-    while (!seed.attemptSet(init)) {
-    }
+    seed = (init ^ multiplier) & mask;
   }
 
   public float nextFloat() {
@@ -63,11 +61,7 @@ public final class Random {
   }
 
   private final int next(int bits) {
-    long oldseed, nextseed;
-    do {
-      oldseed = seed.get();
-      nextseed = (oldseed * multiplier + addend) & mask;
-    } while (!seed.attemptUpdate(oldseed, nextseed));
-    return (int) (nextseed >>> (48 - bits));
+    seed = (seed * multiplier + addend) & mask;
+    return (int) (seed >>> (48 - bits));
   }
 }
@@ -0,0 +1,173 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * Per-thread geometric sampler for ClassTrackers with a sample
+ * ratio less than 1.0.
+ * <p>
+ * Instead of drawing a random number per allocation, each thread
+ * keeps a countdown per sampled ClassTracker.  When the countdown
+ * reaches zero the allocation is sampled and the next countdown is
+ * drawn from the geometric distribution:<pre>
+ *   floor(ln(U) / ln(1 - ratio))
+ * </pre>
+ * which is the number of allocations skipped between independent
+ * samples with probability "ratio".  The sampled counts can still
+ * be scaled by 1/ratio.
+ */
+final class Sampler {
+
+  private static final ThreadLocal samplers = new ThreadLocal();
+
+  // next sampler id
+  private static final Object lock = new Object();
+  private static int next_id;
+
+  // countdown per sampler id, where -1 is unset, and the adaptive
+  // sample shift that the countdown was drawn for
+  private int[] countdowns = new int[0];
+  private byte[] shifts = new byte[0];
+
+  // allocations skipped since the last sample per sampler id, and
+  // the count taken by the last sample, see SelfMetrics
+  private int[] skips = new int[0];
+  private int skipped;
+
+  private final Random random;
+
+  private Sampler(long seed) {
+    random = new Random(seed);
+  }
+
+  /** @return a dense id for a new sampled ClassTracker */
+  static int newId() {
+    synchronized (lock) {
+      return next_id++;
+    }
+  }
+
+  /** @return the "logq" for a sample ratio */
+  static double getLogSkip(double ratio) {
+    // 0.0 for ratio <= 0, which "nextGap" treats as never
+    return (ratio <= 0.0 ? 0.0 : Math.log(1.0 - ratio));
+  }
+
+  /** @return this thread's sampler */
+  static Sampler getSampler() {
+    Sampler s = (Sampler) samplers.get();
+    if (s == null) {
+      Thread t = Thread.currentThread();
+      s = new Sampler(
+          System.currentTimeMillis() ^
+          (((long) System.identityHashCode(t)) << 16));
+      samplers.set(s);
+    }
+    return s;
+  }
+
+  /**
+   * @param id the ClassTracker's "newId()"
+   * @param logq the ClassTracker's "getLogSkip(ratio)"
+   * @param shift the ClassTracker's adaptive sample shift
+   * @return true if this allocation should be sampled
+   */
+  boolean sample(int id, double logq, int shift) {
+    int[] c = countdowns;
+    if (id >= c.length) {
+      c = grow(id);
+    }
+    int n = c[id];
+    if (shifts[id] != shift) {
+      // the ratio changed, so redraw the countdown.  This is fine
+      // since the geometric distribution is memoryless.
+      shifts[id] = (byte) shift;
+      n = -1;
+    }
+    if (n > 0) {
+      c[id] = n - 1;
+      return skip(id);
+    }
+    if (n == 0) {
+      c[id] = nextGap(logq);
+      return take(id);
+    }
+    // first allocation by this thread, or new ratio
+    int gap = nextGap(logq);
+    if (gap == 0) {
+      c[id] = nextGap(logq);
+      return take(id);
+    }
+    c[id] = gap - 1;
+    return skip(id);
+  }
+
+  /**
+   * @return the number of allocations that this thread skipped
+   * before the last sampled one, or zero if SELF_METRICS is
+   * disabled
+   */
+  int getSkipped() {
+    return skipped;
+  }
+
+  private boolean skip(int id) {
+    if (Configure.SELF_METRICS) {
+      skips[id]++;
+    }
+    return false;
+  }
+  private boolean take(int id) {
+    if (Configure.SELF_METRICS) {
+      skipped = skips[id];
+      skips[id] = 0;
+    }
+    return true;
+  }
+
+  private int[] grow(int id) {
+    int[] old = countdowns;
+    int[] c = new int[Math.max(id + 1, 2 * old.length)];
+    System.arraycopy(old, 0, c, 0, old.length);
+    for (int i = old.length; i < c.length; i++) {
+      c[i] = -1;
+    }
+    byte[] s = new byte[c.length];
+    System.arraycopy(shifts, 0, s, 0, shifts.length);
+    int[] k = new int[c.length];
+    System.arraycopy(skips, 0, k, 0, skips.length);
+    countdowns = c;
+    shifts = s;
+    skips = k;
+    return c;
+  }
+
+  private int nextGap(double logq) {
+    // "1 - nextDouble()" is in (0, 1], so the log is finite
+    double u = 1.0 - random.nextDouble();
+    double g = Math.log(u) / logq;
+    if (!(g >= 0.0 && g < Integer.MAX_VALUE)) {
+      // ratio <= 0
+      return Integer.MAX_VALUE;
+    }
+    return (int) g;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * A ClassTracker's counters of the profiler's own work and memory,
+ * as returned by "MemoryStats.getSelfMetrics()".
+ * <p>
+ * The counts are raw, not scaled by the sample ratio, since they
+ * measure the profiler rather than the profiled class.  The
+ * sampled-out count only includes each thread's skipped
+ * allocations up to its last sampled one.  The contention count is
+ * approximate, since it's based on an unsynchronized hint that the
+ * stripe lock is held.  The bytes are estimates.
+ *
+ * @see Configure#SELF_METRICS
+ */
+public final class SelfMetrics {
+
+  private final String classname;
+  private final long tracked;
+  private final long sampledOut;
+  private final long contended;
+  private final int resizes;
+  private final long sweeps;
+  private final long sweepNanos;
+  private final long lastSweepNanos;
+  private final long reclaimed;
+  private final long lastReclaimed;
+  private final long entries;
+  private final long entryBytes;
+  private final long tableBytes;
+
+  SelfMetrics(
+      String classname,
+      long tracked,
+      long sampledOut,
+      long contended,
+      int resizes,
+      long sweeps,
+      long sweepNanos,
+      long lastSweepNanos,
+      long reclaimed,
+      long lastReclaimed,
+      long entries,
+      long entryBytes,
+      long tableBytes) {
+    this.classname = classname;
+    this.tracked = tracked;
+    this.sampledOut = sampledOut;
+    this.contended = contended;
+    this.resizes = resizes;
+    this.sweeps = sweeps;
+    this.sweepNanos = sweepNanos;
+    this.lastSweepNanos = lastSweepNanos;
+    this.reclaimed = reclaimed;
+    this.lastReclaimed = lastReclaimed;
+    this.entries = entries;
+    this.entryBytes = entryBytes;
+    this.tableBytes = tableBytes;
+  }
+
+  /** @return the class name */
+  public String getClassName() {
+    return classname;
+  }
+
+  /** @return the number of "add(obj)" calls, tracked or not */
+  public long getAdds() {
+    return tracked + sampledOut;
+  }
+
+  /** @return the number of adds that were tracked */
+  public long getTrackedAdds() {
+    return tracked;
+  }
+
+  /** @return the number of adds that the Sampler skipped */
+  public long getSampledOutAdds() {
+    return sampledOut;
+  }
+
+  /**
+   * @return the number of times a thread found a stripe lock held
+   * when it added instances
+   */
+  public long getContendedLocks() {
+    return contended;
+  }
+
+  /**
+   * @return the number of InstancesTable resizes, including each
+   * stripe's initial table
+   */
+  public int getResizes() {
+    return resizes;
+  }
+
+  /** @return the number of completed background sweep passes */
+  public long getSweeps() {
+    return sweeps;
+  }
+
+  /**
+   * @return the total time of all sweep slices, including the
+   * current partial pass
+   */
+  public long getSweepNanos() {
+    return sweepNanos;
+  }
+
+  /** @return the total time of the last completed sweep pass */
+  public long getLastSweepNanos() {
+    return lastSweepNanos;
+  }
+
+  /**
+   * @return the number of gc'ed entries that sweeps unlinked, which
+   * the ReferenceQueue reaper hadn't yet dequeued
+   */
+  public long getSweepReclaimed() {
+    return reclaimed;
+  }
+
+  /** @return the gc'ed entries unlinked by the last sweep pass */
+  public long getLastSweepReclaimed() {
+    return lastReclaimed;
+  }
+
+  /** @return the number of InstanceStats in the tables */
+  public long getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the estimated bytes of the InstanceStats, which are
+   * the WeakReferences to the instances, and their optional
+   * timestamps, site ids and contexts
+   */
+  public long getEntryBytes() {
+    return entryBytes;
+  }
+
+  /**
+   * @return the estimated bytes of the InstancesTable arrays plus
+   * the cohort and history rings
+   */
+  public long getTableBytes() {
+    return tableBytes;
+  }
+
+  /**
+   * @return the total estimated metadata bytes, excluding the
+   * interned stacks that are shared by all classes
+   *
+   * @see MemoryStats#getAllocationSiteBytes
+   */
+  public long getBytes() {
+    return entryBytes + tableBytes;
+  }
+
+  public String toString() {
+    return
+      "(self_metrics"+
+      " class="+classname+
+      " tracked="+tracked+
+      " sampled_out="+sampledOut+
+      " contended="+contended+
+      " resizes="+resizes+
+      " sweeps="+sweeps+
+      " sweep_nanos="+sweepNanos+
+      " last_sweep_nanos="+lastSweepNanos+
+      " reclaimed="+reclaimed+
+      " last_reclaimed="+lastReclaimed+
+      " entries="+entries+
+      " entry_bytes="+entryBytes+
+      " table_bytes="+tableBytes+
+      ")";
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * A small open addressing map of (site id, count) pairs, used to
+ * count the live instances per AllocationSite during a sweep.
+ * <p>
+ * A ClassTracker's instances usually come from a handful of sites,
+ * so this is much smaller than an array indexed by site id.
+ */
+final class SiteCounts {
+
+  // keys are "site id + 1", so zero is empty
+  private int[] keys = new int[8];
+  private double[] counts = new double[8];
+  private int size;
+
+  void add(int site, double count) {
+    int i = find(site);
+    if (keys[i] == 0) {
+      keys[i] = site + 1;
+      if (++size * 2 > keys.length) {
+        rehash();
+        i = find(site);
+      }
+    }
+    counts[i] += count;
+  }
+
+  /** add all of the given counts */
+  void addAll(SiteCounts sc) {
+    for (int i = 0; i < sc.keys.length; i++) {
+      if (sc.keys[i] != 0) {
+        add(sc.keys[i] - 1, sc.counts[i]);
+      }
+    }
+  }
+
+  /** @return the number of sites */
+  int size() {
+    return size;
+  }
+
+  /** @return the site at slot "i", or -1 if empty */
+  int getSite(int i) {
+    return keys[i] - 1;
+  }
+
+  /** @return the count at slot "i" */
+  double getCount(int i) {
+    return counts[i];
+  }
+
+  /** @return the number of slots, for iteration */
+  int capacity() {
+    return keys.length;
+  }
+
+  private int find(int site) {
+    int mask = keys.length - 1;
+    int i = (site * 0x9E3779B9 >>> 16) & mask;
+    while (true) {
+      int k = keys[i];
+      if (k == 0 || k == site + 1) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  private void rehash() {
+    int[] old_keys = keys;
+    double[] old_counts = counts;
+    keys = new int[old_keys.length << 1];
+    counts = new double[keys.length];
+    for (int j = 0; j < old_keys.length; j++) {
+      int k = old_keys[j];
+      if (k != 0) {
+        int i = find(k - 1);
+        keys[i] = k;
+        counts[i] = old_counts[j];
+      }
+    }
+  }
+}
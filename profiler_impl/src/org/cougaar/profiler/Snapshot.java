@@ -0,0 +1,287 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the per-class, per-agent and
+ * per-allocation site counters, for "mark now, diff later" views.
+ * <p>
+ * A snapshot only copies the counters that are kept current by the
+ * ClassTrackers and the background sweep, so it costs O(classes +
+ * agents + sites) and never copies the instances.  All values are
+ * estimated totals, scaled by the sample ratio.  The bytes are the
+ * live instances times the object size plus the sum of capacity
+ * bytes as of the last update or sweep.
+ * <p>
+ * Site rows are only available if stacks are enabled, and are as
+ * fresh as the last LeakDetector sweep cycle.  Sites don't count
+ * allocations, so their "allocated" is zero.
+ *
+ * @see MemoryStats#snapshot()
+ */
+public final class Snapshot {
+
+  public static final int CLASS = 0;
+  public static final int AGENT = 1;
+  public static final int SITE = 2;
+
+  private final long time;
+  private final String[] names;
+  private final int[] kinds;
+  private final long[] live;
+  private final long[] allocated;
+  private final long[] bytes;
+
+  private Snapshot(Builder b, long time) {
+    this.time = time;
+    int n = b.size;
+    names = new String[n];
+    kinds = new int[n];
+    live = new long[n];
+    allocated = new long[n];
+    bytes = new long[n];
+    System.arraycopy(b.names, 0, names, 0, n);
+    System.arraycopy(b.kinds, 0, kinds, 0, n);
+    System.arraycopy(b.live, 0, live, 0, n);
+    System.arraycopy(b.allocated, 0, allocated, 0, n);
+    System.arraycopy(b.bytes, 0, bytes, 0, n);
+  }
+
+  /** @return the time the snapshot was taken */
+  public long getTime() {
+    return time;
+  }
+
+  /** @return the number of rows */
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * @return the row name, which is the class name for a CLASS row,
+   * "class @ agent" for an AGENT row, and "site id at frame" for a
+   * SITE row
+   */
+  public String getName(int i) {
+    return names[i];
+  }
+
+  /** @return CLASS, AGENT or SITE */
+  public int getKind(int i) {
+    return kinds[i];
+  }
+
+  /** @return the estimated live instances */
+  public long getInstances(int i) {
+    return live[i];
+  }
+
+  /** @return the estimated total allocations, live plus gc'ed */
+  public long getAllocated(int i) {
+    return allocated[i];
+  }
+
+  /** @return the estimated live bytes */
+  public long getBytes(int i) {
+    return bytes[i];
+  }
+
+  /**
+   * Compare this snapshot to an earlier baseline.
+   *
+   * @return the changed rows, sorted by decreasing bytes growth
+   */
+  public Delta[] diff(Snapshot baseline) {
+    Map base_index = new HashMap();
+    for (int i = 0; i < baseline.names.length; i++) {
+      base_index.put(baseline.names[i], Integer.valueOf(i));
+    }
+    boolean[] matched = new boolean[baseline.names.length];
+    Delta[] ret = new Delta[names.length + baseline.names.length];
+    int n = 0;
+    for (int i = 0; i < names.length; i++) {
+      Integer j = (Integer) base_index.get(names[i]);
+      Delta d;
+      if (j == null) {
+        d = new Delta(
+            names[i], kinds[i], 0, live[i], allocated[i], 0, bytes[i]);
+      } else {
+        int k = j.intValue();
+        matched[k] = true;
+        d = new Delta(
+            names[i], kinds[i],
+            baseline.live[k], live[i],
+            allocated[i] - baseline.allocated[k],
+            baseline.bytes[k], bytes[i]);
+      }
+      if (d.isChanged()) {
+        ret[n++] = d;
+      }
+    }
+    for (int k = 0; k < matched.length; k++) {
+      if (!matched[k]) {
+        // gone, e.g. an agent that was unloaded
+        Delta d = new Delta(
+            baseline.names[k], baseline.kinds[k],
+            baseline.live[k], 0, 0, baseline.bytes[k], 0);
+        if (d.isChanged()) {
+          ret[n++] = d;
+        }
+      }
+    }
+    Delta[] trimmed = new Delta[n];
+    System.arraycopy(ret, 0, trimmed, 0, n);
+    Arrays.sort(trimmed, DECREASING_BYTES);
+    return trimmed;
+  }
+
+  private static final Comparator DECREASING_BYTES =
+    new Comparator() {
+      public int compare(Object o1, Object o2) {
+        long b1 = ((Delta) o1).getBytesChange();
+        long b2 = ((Delta) o2).getBytesChange();
+        return (b1 > b2 ? -1 : b1 == b2 ? 0 : 1);
+      }
+    };
+
+  public String toString() {
+    return "(snapshot time="+time+" size="+names.length+")";
+  }
+
+  /** the change in a row between two snapshots */
+  public static final class Delta {
+    private final String name;
+    private final int kind;
+    private final long live_before;
+    private final long live_after;
+    private final long allocated;
+    private final long bytes_before;
+    private final long bytes_after;
+
+    private Delta(
+        String name,
+        int kind,
+        long live_before,
+        long live_after,
+        long allocated,
+        long bytes_before,
+        long bytes_after) {
+      this.name = name;
+      this.kind = kind;
+      this.live_before = live_before;
+      this.live_after = live_after;
+      this.allocated = allocated;
+      this.bytes_before = bytes_before;
+      this.bytes_after = bytes_after;
+    }
+
+    private boolean isChanged() {
+      return
+        (live_before != live_after ||
+         allocated != 0 ||
+         bytes_before != bytes_after);
+    }
+
+    /** @see Snapshot#getName(int) */
+    public String getName() {
+      return name;
+    }
+    /** @see Snapshot#getKind(int) */
+    public int getKind() {
+      return kind;
+    }
+    public long getInstancesBefore() {
+      return live_before;
+    }
+    public long getInstances() {
+      return live_after;
+    }
+    public long getInstancesChange() {
+      return live_after - live_before;
+    }
+    /** @return the allocations between the snapshots */
+    public long getAllocated() {
+      return allocated;
+    }
+    public long getBytesBefore() {
+      return bytes_before;
+    }
+    public long getBytes() {
+      return bytes_after;
+    }
+    public long getBytesChange() {
+      return bytes_after - bytes_before;
+    }
+
+    public String toString() {
+      return
+        "(delta"+
+        " name="+name+
+        " live="+live_before+"->"+live_after+
+        " allocated="+allocated+
+        " bytes="+bytes_before+"->"+bytes_after+
+        ")";
+    }
+  }
+
+  // for use by MemoryStatsImpl and LeakDetector
+  static final class Builder {
+    private String[] names = new String[64];
+    private int[] kinds = new int[64];
+    private long[] live = new long[64];
+    private long[] allocated = new long[64];
+    private long[] bytes = new long[64];
+    private int size;
+
+    void add(
+        String name, int kind, double live, double allocated,
+        double bytes) {
+      if (size >= names.length) {
+        int n = names.length << 1;
+        names = (String[]) grow(names, new String[n]);
+        kinds = (int[]) grow(kinds, new int[n]);
+        this.live = (long[]) grow(this.live, new long[n]);
+        this.allocated = (long[]) grow(this.allocated, new long[n]);
+        this.bytes = (long[]) grow(this.bytes, new long[n]);
+      }
+      names[size] = name;
+      kinds[size] = kind;
+      this.live[size] = (long) live;
+      this.allocated[size] = (long) allocated;
+      this.bytes[size] = (long) bytes;
+      size++;
+    }
+
+    private Object grow(Object from, Object to) {
+      System.arraycopy(from, 0, to, 0, size);
+      return to;
+    }
+
+    Snapshot build(long time) {
+      return new Snapshot(this, time);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * Incremental background sweep of the ClassTrackers, which
+ * refreshes their size/capacity stats and unlinks any gc'ed
+ * entries that weren't dequeued.
+ * <p>
+ * Each UPDATE_FREQUENCY a new cycle visits every ClassTracker.
+ * Every "tick" resumes the cycle where the last tick left off,
+ * sweeping at most SWEEP_BUCKETS buckets per stripe lock hold
+ * until the tick's SWEEP_TIME_BUDGET is spent.  An allocating
+ * thread is never blocked for longer than one slice.
+ */
+final class Sweeper {
+
+  private ClassTracker[] cycle;
+  private int next;
+  private long next_cycle;
+
+  /** @param first_cycle the time to start the first cycle */
+  Sweeper(long first_cycle) {
+    next_cycle = first_cycle;
+  }
+
+  /**
+   * @param trackers the current trackers, used to start a new cycle
+   * @param now the current time
+   */
+  void tick(ClassTracker[] trackers, long now) {
+    if (cycle == null) {
+      if (now < next_cycle) {
+        return;
+      }
+      cycle = trackers;
+      next = 0;
+      next_cycle = now + Configure.UPDATE_FREQUENCY;
+    }
+    long deadline = now + Configure.SWEEP_TIME_BUDGET;
+    while (next < cycle.length) {
+      try {
+        if (cycle[next].sweep(Configure.SWEEP_BUCKETS)) {
+          next++;
+        }
+      } catch (Exception e) {
+        next++;
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        return;
+      }
+    }
+    // done
+    cycle = null;
+    LeakDetector.endCycle(System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * A hashed registry of ClassTrackers by class name, with lock-free
+ * reads.
+ * <p>
+ * Every profiled class's static init looks up its tracker, so a
+ * lookup should not grow with the number of registered classes.
+ * The registry is an open addressing table of immutable entries plus
+ * an append-only list for iteration.  Writers are serialized by the
+ * caller.  Readers don't lock, since:<ul>
+ *   <li>an entry's fields are final, so a reader that sees an
+ *       entry sees its name and tracker</li>
+ *   <li>a resized table or list is fully built before it is
+ *       published through a volatile field</li>
+ *   <li>the list count is published after the list entry</li>
+ * </ul>
+ * A reader may miss a concurrently added tracker, so the caller
+ * must lock and re-check before adding.
+ * <p>
+ * This isn't a ConcurrentHashMap, since the SelfProfiler only
+ * excludes the atomics and may profile the map's node classes.  A
+ * put would then allocate a node whose class's static init
+ * registers its own tracker, re-entering the map in the middle of
+ * the put.  This table only allocates its own entries and arrays.
+ */
+final class TrackerRegistry {
+
+  private volatile Entry[] table = new Entry[64];
+  private volatile Entry[] list = new Entry[64];
+  private volatile int count;
+
+  /** @return the tracker for a class, or null */
+  ClassTracker get(String classname) {
+    Entry[] t = table;
+    int mask = t.length - 1;
+    int i = hash(classname) & mask;
+    while (true) {
+      Entry e = t[i];
+      if (e == null) {
+        return null;
+      }
+      if (classname.equals(e.name)) {
+        return e.ct;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  /** add a tracker, which the caller synchronizes */
+  void add(ClassTracker ct) {
+    Entry e = new Entry(ct.getClassName(), ct);
+    int n = count;
+
+    // append to list
+    Entry[] l = list;
+    if (n >= l.length) {
+      Entry[] new_l = new Entry[l.length << 1];
+      System.arraycopy(l, 0, new_l, 0, n);
+      new_l[n] = e;
+      list = new_l;
+    } else {
+      l[n] = e;
+    }
+
+    // insert into table, keeping the load under one half
+    Entry[] t = table;
+    if ((n + 1) * 2 > t.length) {
+      Entry[] new_t = new Entry[t.length << 1];
+      for (int j = 0; j < t.length; j++) {
+        if (t[j] != null) {
+          insert(new_t, t[j]);
+        }
+      }
+      insert(new_t, e);
+      table = new_t;
+    } else {
+      insert(t, e);
+    }
+
+    count = n + 1;
+  }
+
+  /** @return a snapshot of the class names, in registration order */
+  String[] getClassNames() {
+    int n = count;
+    Entry[] l = list;
+    String[] ret = new String[n];
+    for (int i = 0; i < n; i++) {
+      ret[i] = l[i].name;
+    }
+    return ret;
+  }
+
+  /** @return a snapshot of the trackers, in registration order */
+  ClassTracker[] getClassTrackers() {
+    int n = count;
+    Entry[] l = list;
+    ClassTracker[] ret = new ClassTracker[n];
+    for (int i = 0; i < n; i++) {
+      ret[i] = l[i].ct;
+    }
+    return ret;
+  }
+
+  private static int hash(String classname) {
+    // fold the high bits into the low bits we mask by, keeping all
+    // 32 bits so large tables still spread
+    int h = classname.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static void insert(Entry[] t, Entry e) {
+    int mask = t.length - 1;
+    int i = hash(e.name) & mask;
+    while (t[i] != null) {
+      i = (i + 1) & mask;
+    }
+    t[i] = e;
+  }
+
+  private static final class Entry {
+    final String name;
+    final ClassTracker ct;
+    Entry(String name, ClassTracker ct) {
+      this.name = name;
+      this.ct = ct;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * <copyright>
+ *  Copyright 1997-2003 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects Agency (DARPA).
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the Cougaar Open Source License as published by
+ *  DARPA on the Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THE COUGAAR SOFTWARE AND ANY DERIVATIVE SUPPLIED BY LICENSOR IS
+ *  PROVIDED 'AS IS' WITHOUT WARRANTIES OF ANY KIND, WHETHER EXPRESS OR
+ *  IMPLIED, INCLUDING (BUT NOT LIMITED TO) ALL IMPLIED WARRANTIES OF
+ *  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE, AND WITHOUT
+ *  ANY WARRANTIES AS TO NON-INFRINGEMENT.  IN NO EVENT SHALL COPYRIGHT
+ *  HOLDER BE LIABLE FOR ANY DIRECT, SPECIAL, INDIRECT OR CONSEQUENTIAL
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE OF DATA OR PROFITS,
+ *  TORTIOUS CONDUCT, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ *  PERFORMANCE OF THE COUGAAR SOFTWARE.
+ * </copyright>
+ */
+package org.cougaar.profiler;
+
+/**
+ * An exponentially weighted least-squares fit of a growing count,
+ * used by the LeakDetector.
+ * <p>
+ * Each sample is an (x, count, bytes) triple, where "x" is in
+ * minutes.  Prior samples are decayed by LEAK_TREND_DECAY, so the
+ * fit follows recent behavior using a constant five sums per
+ * series instead of a window of samples.  We also keep a decayed
+ * count of the sample-to-sample increases, decreases and flat
+ * steps in bytes, which measures how steadily the bytes grow.
+ */
+final class Trend {
+
+  private int samples;
+  private double w;
+  private double sx;
+  private double sxx;
+  private double sc;
+  private double sxc;
+  private double sb;
+  private double sxb;
+  private double up;
+  private double down;
+  private double flat;
+  private double last_count;
+  private double last_bytes;
+
+  void add(double x, double count, double bytes) {
+    double d = Configure.LEAK_TREND_DECAY;
+    w = w * d + 1;
+    sx = sx * d + x;
+    sxx = sxx * d + x * x;
+    sc = sc * d + count;
+    sxc = sxc * d + x * count;
+    sb = sb * d + bytes;
+    sxb = sxb * d + x * bytes;
+    if (samples > 0) {
+      up *= d;
+      down *= d;
+      flat *= d;
+      if (bytes > last_bytes) {
+        up++;
+      } else if (bytes < last_bytes) {
+        down++;
+      } else {
+        flat++;
+      }
+    }
+    last_count = count;
+    last_bytes = bytes;
+    samples++;
+  }
+
+  int getSamples() {
+    return samples;
+  }
+
+  double getCount() {
+    return last_count;
+  }
+
+  double getBytes() {
+    return last_bytes;
+  }
+
+  /** @return the fitted growth in count per minute */
+  double getSlope() {
+    return slope(sc, sxc);
+  }
+
+  /** @return the fitted growth in bytes per minute */
+  double getBytesSlope() {
+    return slope(sb, sxb);
+  }
+
+  /**
+   * @return 1.0 if the bytes always grew, -1.0 if they always
+   * shrank, and near 0.0 if they were mostly flat or mixed
+   */
+  double getMonotonicity() {
+    double total = up + down + flat;
+    return (total <= 0.0 ? 0.0 : (up - down) / total);
+  }
+
+  private double slope(double sy, double sxy) {
+    double den = w * sxx - sx * sx;
+    if (den <= 0.0) {
+      return 0.0;
+    }
+    return (w * sxy - sx * sy) / den;
+  }
+}
@@ -23,19 +23,27 @@ package org.cougaar.profiler.servlet;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Random;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.cougaar.core.servlet.ComponentServlet;
+import org.cougaar.profiler.AllocationSite;
 import org.cougaar.profiler.ClassStats;
 import org.cougaar.profiler.ClassTracker;
+import org.cougaar.profiler.Cohorts;
 import org.cougaar.profiler.Comparators;
 import org.cougaar.profiler.Groupings;
+import org.cougaar.profiler.History;
 import org.cougaar.profiler.InstanceStats;
+import org.cougaar.profiler.LeakSuspect;
+import org.cougaar.profiler.LifetimeHistogram;
 import org.cougaar.profiler.MemoryStats;
 import org.cougaar.profiler.MemoryStatsImpl;
 import org.cougaar.profiler.Options;
+import org.cougaar.profiler.SelfMetrics;
+import org.cougaar.profiler.Snapshot;
 
 /**
  * Servlet to view MemoryTracker data.
@@ -48,10 +56,20 @@ public class ProfilerServlet
 extends ComponentServlet
 {
 
+  // the "mark" snapshot for "diff" requests
+  private Snapshot baseline;
+
   protected String getPath() {
     return "/profiler";
   }
 
+  private synchronized Snapshot getBaseline() {
+    return baseline;
+  }
+  private synchronized void setBaseline(Snapshot baseline) {
+    this.baseline = baseline;
+  }
+
   public void doGet(
       HttpServletRequest req,
       HttpServletResponse res) throws IOException {
@@ -59,7 +77,7 @@ extends ComponentServlet
     // per-request variables
     String name = getEncodedAgentName();
     MemoryStats memoryStats = MemoryStatsImpl.getInstance();
-    MyHandler h = new MyHandler(name, memoryStats);
+    MyHandler h = new MyHandler(name, memoryStats, this);
     h.execute(req, res);
   }
 
@@ -69,11 +87,18 @@ extends ComponentServlet
     private static final String REQ_ACTION_SCRIPT = "script";
     private static final String REQ_ACTION_TYPE = "type";
     private static final String REQ_ACTION_INSTANCES = "instances";
+    private static final String REQ_ACTION_LEAKS = "leaks";
+    private static final String REQ_ACTION_MARK = "mark";
+    private static final String REQ_ACTION_DIFF = "diff";
+    private static final String REQ_ACTION_OPTIONS = "options";
+    private static final String REQ_ACTION_SELF = "self";
 
     // Names of servlet parameters
     private static final String REQ_ACTION = "action";
     private static final String REQ_GC = "gc";
+    private static final String REQ_UPDATE = "update";
     private static final String REQ_TYPE = "type";
+    private static final String REQ_AGENT = "agent";
     private static final String REQ_INCREASING = "inc";
     private static final String REQ_SORT = "sort";
     private static final String REQ_SAMPLE = "sample";
@@ -81,21 +106,27 @@ extends ComponentServlet
     private static final String REQ_STACK_LINES = "lines";
     private static final String REQ_TO_STRING_ENABLE = "stringEnable";
     private static final String REQ_TO_STRING_LIMIT = "stringLimit";
-
-    /* Skip the first 5 stackframes, since they are within the
-     * profiler:
-     */
-    private static final int STACK_LINES_TO_SKIP = 5;
+    private static final String REQ_PATTERN = "pattern";
+    private static final String REQ_APPLY = "apply";
+    private static final String REQ_TIME = "time";
+    private static final String REQ_STACK = "stack";
+    private static final String REQ_SIZE = "size";
+    private static final String REQ_CAPACITY = "capacity";
+    private static final String REQ_CONTEXT = "context";
+    private static final String REQ_RATIO = "ratio";
 
     private final String name;
     private final MemoryStats memoryStats;
+    private final ProfilerServlet servlet;
 
     private HttpServletRequest req;
     private PrintWriter out;
 
     private String action;
     private boolean gc;
+    private boolean update;
     private String type;
+    private String agent;
     private boolean increasing;
     private String sort;
     private int sample;
@@ -103,9 +134,13 @@ extends ComponentServlet
     private int stackLines;
     private int toStringLimit;
 
-    public MyHandler(String name, MemoryStats memoryStats) {
+    public MyHandler(
+        String name,
+        MemoryStats memoryStats,
+        ProfilerServlet servlet) {
       this.name = name;
       this.memoryStats = memoryStats;
+      this.servlet = servlet;
     }
 
     public void execute(
@@ -153,6 +188,16 @@ extends ComponentServlet
           printInstances();
         } else if (REQ_ACTION_TYPE.equals(action)) {
           printType();
+        } else if (REQ_ACTION_LEAKS.equals(action)) {
+          printLeaks();
+        } else if (REQ_ACTION_MARK.equals(action)) {
+          printMark();
+        } else if (REQ_ACTION_DIFF.equals(action)) {
+          printDiff();
+        } else if (REQ_ACTION_OPTIONS.equals(action)) {
+          printOptions();
+        } else if (REQ_ACTION_SELF.equals(action)) {
+          printSelf();
         } else {
           printAll();
         }
@@ -182,9 +227,11 @@ extends ComponentServlet
     private void parseParams() {
       action = getString(REQ_ACTION, null);
       gc = getBoolean(REQ_GC, false);
+      update = getBoolean(REQ_UPDATE, false);
       type = getString(REQ_TYPE, null);
 
       if (REQ_ACTION_INSTANCES.equals(action)) {
+        agent = getString(REQ_AGENT, null);
         increasing = getBoolean(REQ_INCREASING, false);
         sort = getString(REQ_SORT, null);
         sample = getInt(REQ_SAMPLE, 0);
@@ -194,6 +241,11 @@ extends ComponentServlet
           (getBoolean(REQ_TO_STRING_ENABLE, false) ?
            getInt(REQ_TO_STRING_LIMIT, -1) :
            -1);
+      } else if (REQ_ACTION_LEAKS.equals(action)) {
+        rows = getInt(REQ_ROWS, 20);
+        stackLines = getInt(REQ_STACK_LINES, 8);
+      } else if (REQ_ACTION_DIFF.equals(action)) {
+        rows = getInt(REQ_ROWS, 50);
       }
     }
 
@@ -245,19 +297,44 @@ extends ComponentServlet
 
     private void printAll() throws IOException {
       printGC();
+      out.println(
+          "<p><a href='"+req.getRequestURI()+
+          "?"+REQ_ACTION+"="+REQ_ACTION_LEAKS+
+          "'>Leak suspects</a>"+
+          " | <a href='"+req.getRequestURI()+
+          "?"+REQ_ACTION+"="+REQ_ACTION_MARK+
+          "'>Mark baseline</a>"+
+          " | <a href='"+req.getRequestURI()+
+          "?"+REQ_ACTION+"="+REQ_ACTION_DIFF+
+          "'>Diff from baseline</a>"+
+          " | <a href='"+req.getRequestURI()+
+          "?"+REQ_ACTION+"="+REQ_ACTION_OPTIONS+
+          "'>Change options</a>"+
+          " | <a href='"+req.getRequestURI()+
+          "?"+REQ_ACTION+"="+REQ_ACTION_SELF+
+          "'>Profiler overhead</a><p>");
+      String governor = memoryStats.getGovernorStatus();
+      if (governor != null) {
+        out.println("<p>CPU governor: "+governor+"<p>");
+      }
       beginTable(false);
 
+      if (update) {
+        // refresh the size stats of all classes in parallel
+        memoryStats.updateAll(0);
+      }
+
       String[] classes = memoryStats.getClassNames();
       Arrays.sort(classes);
       int n = classes.length;
       for (int i = 0; i < n; i++) {
         String cl = classes[i];
         ClassTracker ct = memoryStats.getClassTracker(cl);
-        //ct.update();
         ClassStats cs = ct.getOverallStats();
         double trackRatio = ct.getOptions().getSampleRatio();
+        double sampleRatio = ct.getSampleRatio();
         int bytes = ct.getObjectSize();
-        printType(null, cs, cl, trackRatio, bytes, true);
+        printType(null, cs, cl, trackRatio, sampleRatio, bytes, true);
       }
 
       endTable(false);
@@ -309,14 +386,348 @@ extends ComponentServlet
           "</table>");
     }
 
+    private void printLeaks() {
+      printGC();
+
+      LeakSuspect[] suspects = memoryStats.getLeakSuspects(rows);
+      out.println(
+          "<p><b>Leak suspects</b>, ranked by the steady growth in live"+
+          " bytes over the recent background sweeps.  Site bytes only"+
+          " include the shallow object size.<p>"+
+          "<table border=\"2\">\n"+
+          "<tr><th>Suspect</th>"+
+          "<th>Score</th>"+
+          "<th>Bytes per minute</th>"+
+          "<th>Live per minute</th>"+
+          "<th>Monotonicity</th>"+
+          "<th>Live</th>"+
+          "<th>Bytes</th>"+
+          "<th>Sweeps</th></tr>");
+      for (int i = 0; i < suspects.length; i++) {
+        LeakSuspect s = suspects[i];
+        out.print("<tr align=right><td align=left>");
+        String cl = s.getClassName();
+        if (cl != null) {
+          out.print(
+              "<a href='"+req.getRequestURI()+
+              "?"+REQ_ACTION+"="+REQ_ACTION_TYPE+
+              "&"+REQ_TYPE+"="+cl+
+              "'>"+cl+"</a>");
+        } else {
+          printStack(s.getAllocationSite());
+        }
+        out.println(
+            "</td><td>"+
+            format(s.getScore())+
+            "</td><td>"+
+            format(s.getBytesSlope())+
+            "</td><td>"+
+            format(s.getSlope())+
+            "</td><td>"+
+            format(s.getMonotonicity())+
+            "</td><td>"+
+            s.getInstances()+
+            "</td><td>"+
+            s.getBytes()+
+            "</td><td>"+
+            s.getSamples()+
+            "</td></tr>");
+      }
+      out.println("</table>");
+    }
+
+    private void printSelf() {
+      printGC();
+
+      SelfMetrics[] metrics = memoryStats.getSelfMetrics();
+      Arrays.sort(metrics, new Comparator() {
+        public int compare(Object o1, Object o2) {
+          return
+            ((SelfMetrics) o1).getClassName().compareTo(
+              ((SelfMetrics) o2).getClassName());
+        }
+      });
+      long adds = 0;
+      long tracked = 0;
+      long bytes = 0;
+      long sweep_nanos = 0;
+      for (int i = 0; i < metrics.length; i++) {
+        SelfMetrics m = metrics[i];
+        adds += m.getAdds();
+        tracked += m.getTrackedAdds();
+        bytes += m.getBytes();
+        sweep_nanos += m.getSweepNanos();
+      }
+      long site_bytes = memoryStats.getAllocationSiteBytes();
+      out.println(
+          "<p><b>Profiler overhead</b>, counted per class.  Adds are"+
+          " raw \"add(obj)\" calls, not scaled by the sample ratio."+
+          "  Contention is approximate and bytes are estimates.<p>"+
+          "Total adds: "+adds+" ("+tracked+" tracked)<br>"+
+          "Total sweep time: "+
+          format(sweep_nanos / 1000000.0)+" ms<br>"+
+          "Metadata: "+getMegabytes(bytes)+" MB for instances and"+
+          " tables, plus "+getMegabytes(site_bytes)+
+          " MB for allocation sites<br>"+
+          "Startup allocations dropped: "+
+          memoryStats.getStartupDropped()+"<p>");
+      int c = 0;
+      out.println(
+          "<table border=\"2\">\n"+
+          "<thead>\n"+
+          "<tr>"+
+          "<th rowspan=2>"+tableColumn("Type", c++)+"</th>"+
+          "<th colspan=4>Adds</th>"+
+          "<th rowspan=2>"+tableColumn("Resizes", c++)+"</th>"+
+          "<th colspan=5>Sweeps</th>"+
+          "<th colspan=4>Metadata</th>"+
+          "</tr>\n"+
+          "<tr>"+
+          "<th>"+tableColumn("Total", c++)+"</th>"+
+          "<th>"+tableColumn("Tracked", c++)+"</th>"+
+          "<th>"+tableColumn("Sampled Out", c++)+"</th>"+
+          "<th>"+tableColumn("Contended", c++)+"</th>"+
+          "<th>"+tableColumn("Passes", c++)+"</th>"+
+          "<th>"+tableColumn("Total ms", c++)+"</th>"+
+          "<th>"+tableColumn("Last ms", c++)+"</th>"+
+          "<th>"+tableColumn("Reclaimed", c++)+"</th>"+
+          "<th>"+tableColumn("Last Reclaimed", c++)+"</th>"+
+          "<th>"+tableColumn("Entries", c++)+"</th>"+
+          "<th>"+tableColumn("Entry Bytes", c++)+"</th>"+
+          "<th>"+tableColumn("Table Bytes", c++)+"</th>"+
+          "<th>"+tableColumn("Total Bytes", c++)+"</th>"+
+          "</tr>\n"+
+          "</thead>\n"+
+          "<tbody id=\"tbl\">");
+      for (int i = 0; i < metrics.length; i++) {
+        SelfMetrics m = metrics[i];
+        String cl = m.getClassName();
+        out.println(
+            "<tr align=right><td align=left>"+
+            "<a href='"+req.getRequestURI()+
+            "?"+REQ_ACTION+"="+REQ_ACTION_TYPE+
+            "&"+REQ_TYPE+"="+cl+
+            "'>"+cl+"</a>"+
+            "</td><td>"+
+            m.getAdds()+
+            "</td><td>"+
+            m.getTrackedAdds()+
+            "</td><td>"+
+            m.getSampledOutAdds()+
+            "</td><td>"+
+            m.getContendedLocks()+
+            "</td><td>"+
+            m.getResizes()+
+            "</td><td>"+
+            m.getSweeps()+
+            "</td><td>"+
+            format(m.getSweepNanos() / 1000000.0)+
+            "</td><td>"+
+            format(m.getLastSweepNanos() / 1000000.0)+
+            "</td><td>"+
+            m.getSweepReclaimed()+
+            "</td><td>"+
+            m.getLastSweepReclaimed()+
+            "</td><td>"+
+            m.getEntries()+
+            "</td><td>"+
+            m.getEntryBytes()+
+            "</td><td>"+
+            m.getTableBytes()+
+            "</td><td>"+
+            m.getBytes()+
+            "</td></tr>");
+      }
+      endTable(false);
+    }
+
+    private void printMark() {
+      printGC();
+      Snapshot s = memoryStats.snapshot();
+      servlet.setBaseline(s);
+      out.println(
+          "<p>Marked "+s.size()+" counters at "+new Date(s.getTime())+
+          "<p><a href='"+req.getRequestURI()+
+          "?"+REQ_ACTION+"="+REQ_ACTION_DIFF+
+          "'>Diff from baseline</a>");
+    }
+
+    private void printDiff() {
+      printGC();
+      Snapshot base = servlet.getBaseline();
+      if (base == null) {
+        out.println(
+            "<font color=red>No baseline, please "+
+            "<a href='"+req.getRequestURI()+
+            "?"+REQ_ACTION+"="+REQ_ACTION_MARK+
+            "'>mark</a> first</font>");
+        return;
+      }
+      Snapshot now = memoryStats.snapshot();
+      Snapshot.Delta[] deltas = now.diff(base);
+      int n = deltas.length;
+      if (n > rows && rows >= 0) {
+        n = rows;
+      }
+      out.println(
+          "<p>Changes since "+new Date(base.getTime())+
+          " ("+((now.getTime() - base.getTime()) / 1000)+
+          " seconds ago), sorted by bytes growth.  Showing "+n+
+          " of "+deltas.length+" changes.<p>"+
+          "<table border=\"2\">\n"+
+          "<tr><th rowspan=2>Name</th>"+
+          "<th colspan=3>Live</th>"+
+          "<th rowspan=2>Allocated</th>"+
+          "<th colspan=3>Bytes</th></tr>\n"+
+          "<tr><th>Before</th><th>After</th><th>Change</th>"+
+          "<th>Before</th><th>After</th><th>Change</th></tr>");
+      for (int i = 0; i < n; i++) {
+        Snapshot.Delta d = deltas[i];
+        String name = encodeHTML(d.getName());
+        if (d.getKind() == Snapshot.CLASS) {
+          name =
+            "<a href='"+req.getRequestURI()+
+            "?"+REQ_ACTION+"="+REQ_ACTION_TYPE+
+            "&"+REQ_TYPE+"="+d.getName()+
+            "'>"+name+"</a>";
+        }
+        out.println(
+            "<tr align=right><td align=left>"+name+
+            "</td><td>"+d.getInstancesBefore()+
+            "</td><td>"+d.getInstances()+
+            "</td><td>"+d.getInstancesChange()+
+            "</td><td>"+d.getAllocated()+
+            "</td><td>"+d.getBytesBefore()+
+            "</td><td>"+d.getBytes()+
+            "</td><td>"+d.getBytesChange()+
+            "</td></tr>");
+      }
+      out.println("</table>");
+    }
+
+    private void printOptions() {
+      String pattern = getString(REQ_PATTERN, type);
+      String apply = getString(REQ_APPLY, null);
+      if (pattern != null && pattern.length() > 0 && apply != null) {
+        Options o = null;
+        String error = null;
+        if (!"remove".equals(apply)) {
+          String s = getString(REQ_RATIO, null);
+          double ratio = 1.0;
+          if (s != null) {
+            try {
+              ratio = Double.parseDouble(s);
+            } catch (NumberFormatException e) {
+              error = "Invalid sample ratio: "+s;
+            }
+          }
+          o = new Options(
+              getBoolean(REQ_TIME, false),
+              getBoolean(REQ_STACK, false),
+              getBoolean(REQ_SIZE, false),
+              getBoolean(REQ_CAPACITY, false),
+              getBoolean(REQ_CONTEXT, false),
+              ratio);
+        }
+        if (error == null) {
+          try {
+            int n = memoryStats.setOptions(pattern, o);
+            out.println(
+                "<p>"+(o == null ? "Removed" : "Set")+
+                " options for <code>"+encodeHTML(pattern)+
+                "</code>, which changed "+n+" registered classes<p>");
+          } catch (IllegalArgumentException e) {
+            error = e.getMessage();
+          }
+        }
+        if (error != null) {
+          out.println(
+              "<p><font color=red>"+encodeHTML(error)+
+              "</font>, options for <code>"+encodeHTML(pattern)+
+              "</code> not changed<p>");
+        }
+      }
+
+      // default to the class's current options
+      ClassTracker ct = 
+        (type == null ? null : memoryStats.getClassTracker(type));
+      Options current = (ct == null ? null : ct.getCurrentOptions());
+      out.println(
+          "<form action=\""+
+          req.getRequestURI()+
+          "\" method =\"get\">\n"+
+          "<input type=hidden name="+
+          REQ_ACTION+
+          " value="+
+          REQ_ACTION_OPTIONS+
+          ">"+
+          "<i>Class name, or prefix ending in '.' or '$':</i>"+
+          "<input name=\""+REQ_PATTERN+
+          "\" type=\"text\" size=60 value=\""+
+          (pattern == null ? "" : encodeHTML(pattern))+"\"><br/>\n"+
+          getCheckbox(REQ_TIME, "Time",
+            (current != null && current.isTimeEnabled()))+
+          getCheckbox(REQ_STACK, "Stack",
+            (current != null && current.isStackEnabled()))+
+          getCheckbox(REQ_SIZE, "Size",
+            (current != null && current.isSizeEnabled()))+
+          getCheckbox(REQ_CAPACITY, "Capacity",
+            (current != null && current.isCapacityEnabled()))+
+          getCheckbox(REQ_CONTEXT, "Context",
+            (current != null && current.isContextEnabled()))+
+          "<br/>\n"+
+          "<i>Sample ratio:</i>"+
+          "<input name=\""+REQ_RATIO+
+          "\" type=\"text\" value=\""+
+          (current == null ? 1.0 : current.getSampleRatio())+
+          "\"><br/>\n"+
+          "<input type=\"submit\" name=\""+REQ_APPLY+
+          "\" value=\"set\"/>"+
+          "<input type=\"submit\" name=\""+REQ_APPLY+
+          "\" value=\"remove\"/>\n"+
+          "</form>\n"+
+          "<p>The sample ratio can't exceed the class's registered"+
+          " ratio, and is rounded down to the registered ratio"+
+          " divided by a power of two.  Size and"+
+          " capacity are only collected if either was enabled when"+
+          " the class was registered.  \"remove\" restores the"+
+          " registered options.");
+    }
+
+    private String getCheckbox(String name, String label, boolean on) {
+      return
+        "<input type=\"checkbox\" name=\""+name+
+        "\" value=\"true\""+(on ? " checked" : "")+">"+
+        label+" ";
+    }
+
     private void printType(
         String agent,
         ClassStats cs,
         String cl,
         double trackRatio,
+        double sampleRatio,
         int bytes,
         boolean link) {
-      out.print("<tr align=right><td align=left>");
+      out.print("<tr align=right>");
+      if (agent != null) {
+        out.print("<td align=left>");
+        if ("*".equals(agent)) {
+          out.print(agent);
+        } else {
+          // link to the agent's instances
+          out.print(
+              "<a href='"+req.getRequestURI()+
+              "?"+REQ_ACTION+"="+REQ_ACTION_INSTANCES+
+              "&"+REQ_TYPE+"="+cl+
+              "&"+REQ_AGENT+"="+agent+
+              "&"+REQ_ROWS+"=100"+
+              "&"+REQ_STACK_LINES+"=8"+
+              "'>"+agent+"</a>");
+        }
+        out.print("</td>");
+      }
+      out.print("<td align=left>");
       if (link) {
         out.print(
             "<a href='"+req.getRequestURI()+
@@ -328,8 +739,10 @@ extends ComponentServlet
       if (link) {
         out.print("</a>");
       }
-      long live = cs.getInstances();
-      long dead = cs.getGarbageCollected();
+      // the scaled counts are weighted by any adaptive sampling, so
+      // we scale them by the Options ratio
+      long live = cs.getScaledInstances();
+      long dead = cs.getScaledGarbageCollected();
       long cap = cs.getSumCapacityBytes();
       long sumSize = cs.getSumSize();
       long sumCap = cs.getSumCapacityCount();
@@ -354,7 +767,7 @@ extends ComponentServlet
         (live > 0 ? ((double) sumCap / live) : 0.0);
       out.print(
           "</td><td>"+
-          format(100.0*trackRatio)+"</td><td>"+
+          format(100.0*sampleRatio)+"</td><td>"+
           live+"</td><td>"+
           dead+"</td><td>"+
           (live + dead)+"</td><td>"+
@@ -387,6 +800,21 @@ extends ComponentServlet
       int bytes = ct.getObjectSize();
       Options options = ct.getOptions();
       double trackRatio = options.getSampleRatio();
+      double sampleRatio = ct.getSampleRatio();
+      Options current = ct.getCurrentOptions();
+      if (!current.equals(options)) {
+        out.println(
+            "<p>Registered "+options+", currently "+current);
+      }
+      out.println(
+          "<p><a href='"+req.getRequestURI()+
+          "?"+REQ_ACTION+"="+REQ_ACTION_OPTIONS+
+          "&"+REQ_TYPE+"="+type+
+          "'>Change options</a>");
+      // offer the views of both the registered and current options,
+      // since the instances may have been allocated with either
+      options = new Options(
+          options.getFlags() | current.getFlags(), trackRatio);
 
       String[] agents = ct.getAgentNames();
       int numAgents = (agents == null ? 0 : agents.length);
@@ -395,14 +823,25 @@ extends ComponentServlet
       beginTable(hasAgent);
       printType(
           (hasAgent ? "*" : null),
-          cs, type, trackRatio, bytes, false);
+          cs, type, trackRatio, sampleRatio, bytes, false);
       for (int i = 0; i < numAgents; i++) {
         String agent = agents[i];
         ClassStats acs = ct.getAgentStats(agent);
-        printType(agent, acs, type, trackRatio, bytes, false);
+        printType(
+            agent, acs, type, trackRatio, sampleRatio, bytes, false);
       }
       endTable(hasAgent);
 
+      printHistory(ct.getHistory(), trackRatio);
+      printCohorts(ct.getCohorts(), trackRatio);
+
+      LifetimeHistogram lifetimes = cs.getLifetimes();
+      if (lifetimes != null) {
+        out.println(
+            "<p><b>Lifetimes</b> of gc'ed instances: "+
+            getLifetimes(lifetimes));
+      }
+
       // create form to see instances
       //
       // we use "get" instead of "post" to allow redirects.
@@ -487,12 +926,16 @@ extends ComponentServlet
         return;
       }
 
-      // force an update, get the per-element stats
-      InstanceStats[] iss = ct.update();
+      // force an update, get the per-element stats.  An agent's
+      // instances are kept in a separate list, so we don't need to
+      // scan the other agents' instances.
+      InstanceStats[] iss = 
+        (agent == null ? ct.update() : ct.getAgentInstances(agent));
       int total = (iss == null ? 0 : iss.length);
 
       out.println(
           "Showing <code>"+type+"</code>'s"+
+          (agent == null ? "" : " allocated by agent "+agent)+
           (sort == null ?
            "" :
            (" by "+
@@ -502,6 +945,14 @@ extends ComponentServlet
           "<p/>");
 
       double trackRatio = ct.getOptions().getSampleRatio();
+      ClassStats cs = ct.getOverallStats();
+      long live = cs.getInstances();
+      long scaled_live = cs.getScaledInstances();
+      if (live > 0 && scaled_live > live) {
+        // adaptive sampling tracked some of these instances at a
+        // lower ratio, so use the mean ratio of the live instances
+        trackRatio *= ((double) live / scaled_live);
+      }
       out.println(
           "Tracked "+
           (trackRatio < 1.0 ?
@@ -619,9 +1070,14 @@ extends ComponentServlet
              format(((double) count) * multiplier) +
              "</td>" : "")+
             "<td align=left>");
-        if (obj instanceof Throwable) {
+        if (obj instanceof AllocationSite) {
           // stack
-          printStack((Throwable) obj);
+          AllocationSite site = (AllocationSite) obj;
+          printStack(site);
+          LifetimeHistogram lifetimes = site.getLifetimes();
+          if (lifetimes != null) {
+            out.print("Lifetimes: "+getLifetimes(lifetimes));
+          }
         } else if (obj instanceof Number) {
           // time or hashcode
           out.print(obj);
@@ -703,8 +1159,8 @@ extends ComponentServlet
       // we could print additional InstanceContext info here!
       out.println("</td>");
       out.println("<td>");
-      Throwable throwable = is.getThrowable();
-      printStack(throwable);
+      AllocationSite site = is.getAllocationSite();
+      printStack(site);
       out.println("</td>");
       if (toStringLimit > 0) {
         out.print("<td>");
@@ -713,17 +1169,16 @@ extends ComponentServlet
       }
     }
 
-    private void printStack(Throwable throwable) {
-      if (throwable == null) {
+    private void printStack(AllocationSite site) {
+      if (site == null) {
         out.println("<i>disabled</i>");
       } else {
         out.print("<pre>");
-        StackTraceElement ste[] = throwable.getStackTrace();
-        int jmax =
-          Math.min(
-              ste.length,
-              stackLines + STACK_LINES_TO_SKIP);
-        for (int j = STACK_LINES_TO_SKIP; j < jmax; j++) {
+        // the profiler's frames were excluded when the site was
+        // captured
+        StackTraceElement ste[] = site.getStackTrace();
+        int jmax = Math.min(ste.length, stackLines);
+        for (int j = 0; j < jmax; j++) {
           StackTraceElement stack = ste[j];
           String s =
             "\n"+
@@ -776,6 +1231,119 @@ extends ComponentServlet
       }
     }
 
+    private static final long[] HISTORY_WINDOWS = {
+      60 * 1000, 5 * 60 * 1000, 60 * 60 * 1000,
+    };
+    private static final String[] HISTORY_WINDOW_NAMES = {
+      "1 minute", "5 minutes", "1 hour",
+    };
+
+    private void printHistory(History h, double trackRatio) {
+      if (h == null || h.size() < 2) {
+        return;
+      }
+      int n = h.size();
+      long live = (long) (h.getInstances(n - 1) / trackRatio);
+      long liveBytes = (long) (h.getLiveBytes(n - 1) / trackRatio);
+      out.println(
+          "<p><b>History</b> ("+n+" samples since "+
+          new Date(h.getTime(0))+")<br>"+
+          "<table border=\"1\">\n"+
+          "<tr><th>Window</th>"+
+          "<th>Allocated per second</th>"+
+          "<th>GC'ed per second</th>"+
+          "<th>Live change</th>"+
+          "<th>Live bytes change</th></tr>");
+      for (int i = 0; i < HISTORY_WINDOWS.length; i++) {
+        long window = HISTORY_WINDOWS[i];
+        // find the oldest sample in the window
+        int j = n - 1;
+        while (j > 0 && h.getTime(j - 1) >= h.getTime(n - 1) - window) {
+          j--;
+        }
+        long liveDiff =
+          live - (long) (h.getInstances(j) / trackRatio);
+        long bytesDiff =
+          liveBytes - (long) (h.getLiveBytes(j) / trackRatio);
+        out.println(
+            "<tr><td>"+HISTORY_WINDOW_NAMES[i]+
+            "</td><td align=right>"+
+            format(h.getAllocationRate(window) / trackRatio)+
+            "</td><td align=right>"+
+            format(h.getGarbageCollectionRate(window) / trackRatio)+
+            "</td><td align=right>"+
+            liveDiff+
+            "</td><td align=right>"+
+            bytesDiff+
+            "</td></tr>");
+      }
+      out.println("</table>");
+    }
+
+    private void printCohorts(Cohorts c, double trackRatio) {
+      if (c == null) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      out.println(
+          "<p><b>Survivors</b> by allocation time<br>"+
+          "<table border=\"1\">\n"+
+          "<tr><th>Age</th>"+
+          "<th>Allocated</th>"+
+          "<th>Live</th>"+
+          "<th>Survival%</th></tr>");
+      for (int i = c.size() - 1; i >= 0; i--) {
+        long allocated = c.getAllocated(i);
+        if (allocated <= 0) {
+          continue;
+        }
+        printCohort(
+            getMillis(now - c.getStartTime(i))+" ago",
+            allocated, c.getInstances(i), trackRatio);
+      }
+      if (c.getOlderAllocated() > 0) {
+        printCohort(
+            "older",
+            c.getOlderAllocated(), c.getOlderInstances(), trackRatio);
+      }
+      out.println("</table>");
+    }
+
+    private void printCohort(
+        String name, long allocated, long live, double trackRatio) {
+      out.println(
+          "<tr><td>"+name+
+          "</td><td align=right>"+
+          (long) (allocated / trackRatio)+
+          "</td><td align=right>"+
+          (long) (live / trackRatio)+
+          "</td><td align=right>"+
+          format((100.0 * live) / allocated)+
+          "</td></tr>");
+    }
+
+    private static String getLifetimes(LifetimeHistogram h) {
+      return
+        "median &lt; "+getMillis(h.getPercentile(0.5))+
+        ", 90% &lt; "+getMillis(h.getPercentile(0.9))+
+        ", 99% &lt; "+getMillis(h.getPercentile(0.99))+
+        " (of "+h.getCount()+" sampled)";
+    }
+
+    private static String getMillis(long millis) {
+      if (millis == Long.MAX_VALUE) {
+        return "forever";
+      } else if (millis < 1000) {
+        return millis+" ms";
+      } else if (millis < 120 * 1000) {
+        return format(millis / 1000.0)+" s";
+      } else if (millis < 120 * 60 * 1000) {
+        return format(millis / 60000.0)+" min";
+      } else {
+        return format(millis / 3600000.0)+" hr";
+      }
+    }
+
     private static String getMegabytes(long bytes) {
       double mb = (((double) bytes) / (1<<20));
       return format(mb);
@@ -791,6 +1359,9 @@ extends ComponentServlet
       // bug 4916788.  I suspect that DecimalFormat has the same
       // problem, so here we do it manually.  We don't expect
       // oddities like  NaNs/infinites/etc.
+      if (d < 0.0) {
+        return "-"+format(-d);
+      }
       double floor = Math.floor(d);
       double rem = d - floor;
       long shortrem = Math.round(rem * 100);
@@ -40,5 +40,20 @@ public abstract class MemoryTracker {
     return NULL;
   }
 
+  /** Called by "SelfProfiler --inline=true" clients. */
+  public static final MemoryTracker getInstance(
+      String classname, int bytesEach, int flags, double sampleRatio) {
+    return NULL;
+  }
+
+  /** Called by "SelfProfiler --sites=true" clients. */
+  public static final int registerAllocationSites(String[] sites) {
+    return 0;
+  }
+
+  /** Called by "SelfProfiler --sites=true" clients, ignored. */
+  public static final void setAllocationSite(int site) {
+  }
+
   public abstract void add(Object o);
 }
@@ -34,7 +34,9 @@ import org.apache.bcel.Repository;
 import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.Field;
 import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.LineNumberTable;
 import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ArrayType;
 import org.apache.bcel.generic.BasicType;
 import org.apache.bcel.generic.BranchHandle;
 import org.apache.bcel.generic.BranchInstruction;
@@ -53,12 +55,14 @@ import org.apache.bcel.generic.InstructionList;
 import org.apache.bcel.generic.InvokeInstruction;
 import org.apache.bcel.generic.LocalVariableInstruction;
 import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.NEW;
 import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.PUSH;
 import org.apache.bcel.generic.ReferenceType;
 import org.apache.bcel.generic.ReturnInstruction;
 import org.apache.bcel.generic.StackInstruction;
 import org.apache.bcel.generic.Type;
+import org.cougaar.profiler.Options;
 
 /**
  * Read in a class file and add instructions to record every
@@ -68,6 +72,10 @@ import org.apache.bcel.generic.Type;
  * in all of its own constructor/clone/readObject methods.
  * Any allocation of this class by any class in the VM will
  * be tracked.
+ * <p>
+ * Optionally the class also names the allocation site of every
+ * "new" in its own methods, so the profiled classes can record the
+ * site without capturing a stack.
  */
 public class SelfProfiler {
 
@@ -77,6 +85,8 @@ public class SelfProfiler {
         "\n"+
         "  --this=BOOLEAN      profile this class (default is true)\n"+
         "  --arrays=BOOLEAN    profile array allocations (default is false)\n"+
+        "  --sites=BOOLEAN     name the allocation site of every \"new\" in\n"+
+        "                      this class's methods (default is false)\n"+
         "\n"+
         "  --config=STRING     class name of Options factory class (default is\n"+
         "                      \"org.cougaar.profiler.DefaultOptionsFactory\")\n"+
@@ -84,6 +94,12 @@ public class SelfProfiler {
         "  --module=STRING     optional \"module\" name that will be passed to\n"+
         "                      the Options factory method (default is null)\n"+
         "\n"+
+        "  --inline=BOOLEAN    call the Options factory at transform time and\n"+
+        "                      emit the resulting options as constants, as\n"+
+        "                      opposed to calling the factory in the class\n"+
+        "                      init (default is false).  The factory class\n"+
+        "                      must be on the transformer's classpath.\n"+
+        "\n"+
         "  --clinit=BOOLEAN    initialize the profiler field in the static\n"+
         "                      class init as opposed to the first alloc\n"+
         "                      (default is true)\n"+
@@ -128,8 +144,16 @@ public class SelfProfiler {
    * The API must look like:<pre>
    *   package org.cougaar.profiler;
    *   public class MemoryTracker {
+   *     public static final MemoryTracker NULL;
    *     public static MemoryTracker getInstance(
    *         String type, int bytesEach, Options options) {..}
+   *     public static MemoryTracker getInstance(
+   *         String type, int bytesEach,
+   *         int flags, double sampleRatio) {..}
+   *     public static int registerAllocationSites(
+   *         String[] sites) {..}
+   *     public static void setAllocationSite(
+   *         int site) {..}
    *     public void add(Object o) {..}
    *   }
    *   public class Options {
@@ -139,10 +163,16 @@ public class SelfProfiler {
    */
   private static final String MEMORY_TRACKER_CLASS =
     "org.cougaar.profiler.MemoryTracker";
+  private static final String NULL_FIELD =
+    "NULL";
   private static final String GET_INSTANCE_METHOD =
     "getInstance";
   private static final String ADD_METHOD =
     "add";
+  private static final String REGISTER_ALLOCATION_SITES_METHOD =
+    "registerAllocationSites";
+  private static final String SET_ALLOCATION_SITE_METHOD =
+    "setAllocationSite";
   private static final String OPTIONS_CLASS =
     "org.cougaar.profiler.Options";
   private static final String MASK_METHOD =
@@ -224,6 +254,13 @@ public class SelfProfiler {
   private static final String PROFILE_METHOD_PREFIX =
     "$profile_";
 
+  /**
+   * The name of our static field holding the id of this class's
+   * first allocation site.
+   */
+  private static final String SITES_FIELD =
+    "$PROFILER_SITES";
+
   /**
    * Exclude "java.lang" classes used by the profiler.
    * <p>
@@ -246,11 +283,27 @@ public class SelfProfiler {
       "java.lang.ref.WeakReference",
     }));
 
+  // class name prefixes that the profiler allocates while it records
+  // an allocation or creates a ClassTracker, so profiling them would
+  // call back into the profiler
+  private static final String[] EXCLUDE_PREFIXES = new String[] {
+    // the atomic cells of every ClassTracker's "Counters"
+    "java.util.concurrent.atomic.",
+    // the frame stream of an "AllocationSites" stack capture
+    "java.util.stream.",
+    // the frames of a stack capture, see "java.util.stream."
+    "java.lang.StackStreamFactory",
+    "java.lang.StackFrameInfo",
+    "java.lang.StackTraceElement",
+  };
+
   // options and their defaults
   private boolean trackThis = true;
   private boolean trackArrays = false;
+  private boolean trackSites = false;
   private String config = DEFAULT_CONFIG;
   private String module = null;
+  private boolean inlineOptions = false;
   private boolean enableSize = true;
   private boolean enableCapacity = true;
   private boolean staticInit = true;
@@ -327,6 +380,8 @@ public class SelfProfiler {
         trackThis = "true".equals(value);
       } else if (key.equals("arrays")) {
         trackArrays = "true".equals(value);
+      } else if (key.equals("sites")) {
+        trackSites = "true".equals(value);
       } else if (key.equals("config")) {
         if (value == null || value.length() == 0) {
           System.err.println("Must specify "+key+" class");
@@ -335,6 +390,8 @@ public class SelfProfiler {
         config = value;
       } else if (key.equals("module")) {
         module = value;
+      } else if (key.equals("inline")) {
+        inlineOptions = "true".equals(value);
       } else if (key.equals("clinit")) {
         staticInit = "true".equals(value);
       } else if (key.equals("size")) {
@@ -430,6 +487,12 @@ public class SelfProfiler {
       System.err.println("  excluding: "+s);
       return true; 
     }
+    for (int i = 0; i < EXCLUDE_PREFIXES.length; i++) {
+      if (s.startsWith(EXCLUDE_PREFIXES[i])) {
+        System.err.println("  excluding: "+s);
+        return true; 
+      }
+    }
     return false;
   }
 
@@ -489,6 +552,15 @@ public class SelfProfiler {
     // break serialization
     addSerialVersionUID();
 
+    if (trackSites) {
+      // name the site of every "new Foo(..)" in our methods.
+      //
+      // we do this first, so the site's bytecode index matches
+      // the original class file and we skip the methods we add
+      // below
+      recordAllocationSites();
+    }
+
     if (trackThis) {
       // add "$get_size()" and "$get_capacity()" methods
       defineSize();
@@ -1082,6 +1154,31 @@ public class SelfProfiler {
   }
   private InstructionHandle writeClassInit(
       InstructionList il, int bytes, boolean dup) {
+    InstructionHandle begin;
+    if (inlineOptions) {
+      begin = writeInlineInstance(il, bytes);
+    } else {
+      begin = writeGetInstance(il, bytes);
+    }
+    if (dup) {
+      il.append(InstructionConstants.DUP);
+    }
+    il.append(factory.createFieldAccess(
+          class_name,
+          PROFILER_FIELD_PREFIX+safe_class_name,
+          new ObjectType(MEMORY_TRACKER_CLASS),
+          Constants.PUTSTATIC));
+    return begin;
+  }
+
+  private InstructionHandle writeGetInstance(
+      InstructionList il, int bytes) {
+    // call the options factory at runtime:
+    //   Options options = OPTIONS_FACTORY.getOptions(MODULE, "Bar");
+    //   if (options != null) {
+    //     options = options.mask(HAS_SIZE, HAS_CAPACITY);
+    //   }
+    //   MemoryTracker.getInstance("Bar", BYTES_EACH, options);
     InstructionHandle begin = il.append(new PUSH(cp, class_name));
     il.append(new PUSH(cp, bytes));
 
@@ -1128,17 +1225,58 @@ public class SelfProfiler {
             Type.INT,
             new ObjectType(OPTIONS_CLASS)},
           Constants.INVOKESTATIC));
-    if (dup) {
-      il.append(InstructionConstants.DUP);
+    return begin;
+  }
+
+  private InstructionHandle writeInlineInstance(
+      InstructionList il, int bytes) {
+    // call the options factory now, so the class init doesn't
+    // compare strings or allocate an Options:
+    //   MemoryTracker.getInstance("Bar", BYTES_EACH, FLAGS, RATIO);
+    // or, if the factory returns null:
+    //   MemoryTracker.NULL;
+    Options options = getInlineOptions();
+    if (options == null) {
+      return il.append(factory.createFieldAccess(
+            MEMORY_TRACKER_CLASS,
+            NULL_FIELD,
+            new ObjectType(MEMORY_TRACKER_CLASS),
+            Constants.GETSTATIC));
     }
-    il.append(factory.createFieldAccess(
-          class_name,
-          PROFILER_FIELD_PREFIX+safe_class_name,
+    options = options.mask(has_size, has_capacity);
+    InstructionHandle begin = il.append(new PUSH(cp, class_name));
+    il.append(new PUSH(cp, bytes));
+    il.append(new PUSH(cp, options.getFlags()));
+    il.append(new PUSH(cp, options.getSampleRatio()));
+    il.append(factory.createInvoke(
+          MEMORY_TRACKER_CLASS,
+          GET_INSTANCE_METHOD,
           new ObjectType(MEMORY_TRACKER_CLASS),
-          Constants.PUTSTATIC));
+          new Type[] {
+            Type.STRING,
+            Type.INT,
+            Type.INT,
+            Type.DOUBLE},
+          Constants.INVOKESTATIC));
     return begin;
   }
 
+  private Options getInlineOptions() {
+    // invoke "OPTIONS_FACTORY.getOptions(module, classname)"
+    try {
+      Class cl = Class.forName(config);
+      java.lang.reflect.Method m =
+        cl.getMethod(
+            GET_OPTIONS_METHOD,
+            new Class[] { String.class, String.class });
+      return (Options) m.invoke(null, new Object[] { module, class_name });
+    } catch (Exception e) {
+      throw new RuntimeException(
+          "Unable to get options for class \""+class_name+
+          "\" from factory \""+config+"\"", e);
+    }
+  }
+
   private void disableSuperProfiler() {
     // replace:
     //   protected void $profile_Foo() {..}
@@ -1543,6 +1681,210 @@ public class SelfProfiler {
     orig_il.dispose();
   }
 
+  private void recordAllocationSites() {
+    // for all methods {
+    //   before every constructor call of a "new":
+    //     new Foo
+    //     dup
+    //     ..push args..
+    //     invokespecial Foo.<init>(..)
+    //   insert:
+    //     getstatic $PROFILER_SITES
+    //     push INDEX
+    //     iadd
+    //     invokestatic MemoryTracker.setAllocationSite(int)
+    // }
+    // then register the sites in the class init:
+    //   $PROFILER_SITES = MemoryTracker.registerAllocationSites(
+    //     new String[] {"Bar|method|Bar.java|LINE|BCI|Foo", ..});
+    //
+    // We insert just before the "invokespecial" as opposed to after
+    // the "new", so any "new"s in the constructor args are named
+    // first.  The pending site is taken by Foo's tracker, which
+    // checks the type, in place of capturing the stack.  The caller
+    // only pays for a static call and a thread-local ring write.
+    if (class_name.startsWith("java.lang.")) {
+      // the profiler requires "java.lang", e.g. the pending sites
+      // are kept in a ThreadLocal, so we'd recurse
+      return;
+    }
+    List keys = new ArrayList();
+    Method[] methods = cg.getMethods();
+    for (int i = 0; i < methods.length; i++) {
+      Method m = methods[i];
+      if (m.isAbstract() || m.isNative()) {
+        continue;
+      }
+      recordAllocationSites(m, keys);
+    }
+    if (keys.isEmpty()) {
+      return;
+    }
+    // add:
+    //   private static int $PROFILER_SITES;
+    FieldGen field =
+      new FieldGen(
+          (Constants.ACC_PRIVATE |
+           Constants.ACC_STATIC),
+          Type.INT,
+          SITES_FIELD,
+          cp);
+    cg.addField(field.getField());
+    registerAllocationSites(keys);
+  }
+  private void recordAllocationSites(Method orig_m, List keys) {
+    MethodGen method = new MethodGen(orig_m, class_name, cp);
+    InstructionList orig_il = method.getInstructionList();
+    if (orig_il == null) {
+      return;
+    }
+    String file = cg.getFileName();
+    if (file == null || file.indexOf('|') >= 0) {
+      file = "";
+    }
+    LineNumberTable lines = orig_m.getLineNumberTable();
+    // match each "invokespecial <init>" to its "new" with a stack,
+    // since the constructor args may also contain "new"s.  The
+    // unmatched "invokespecial"s are "super(..)" and "this(..)"
+    // calls.
+    List news = new ArrayList();
+    List sites = new ArrayList();
+    for (Iterator iter = orig_il.iterator(); iter.hasNext(); ) {
+      InstructionHandle ih = (InstructionHandle) iter.next();
+      Instruction inst = ih.getInstruction();
+      int opcode = inst.getOpcode();
+      if (opcode == Constants.NEW) {
+        news.add(ih);
+        continue;
+      }
+      if (opcode != Constants.INVOKESPECIAL) {
+        continue;
+      }
+      InvokeInstruction inv = (InvokeInstruction) inst;
+      if (!"<init>".equals(inv.getMethodName(cp))) {
+        continue;
+      }
+      int n = news.size();
+      if (n == 0) {
+        continue;
+      }
+      InstructionHandle new_ih = (InstructionHandle) news.get(n-1);
+      String type = inv.getClassName(cp);
+      if (!type.equals(
+            ((NEW) new_ih.getInstruction()).getLoadClassType(
+              cp).getClassName())) {
+        continue;
+      }
+      news.remove(n-1);
+      if (type.startsWith("java.lang.") &&
+          JAVA_LANG_EXCLUDE.contains(type)) {
+        // never profiled
+        continue;
+      }
+      // use the original bytecode index
+      int bci = ih.getPosition();
+      int line = (lines == null ? -1 : lines.getSourceLine(bci));
+      String key =
+        class_name+"|"+
+        orig_m.getName()+"|"+
+        file+"|"+
+        line+"|"+
+        bci+"|"+
+        type;
+      sites.add(ih);
+      sites.add(Integer.valueOf(keys.size()));
+      keys.add(key);
+    }
+    if (sites.isEmpty()) {
+      orig_il.dispose();
+      return;
+    }
+    for (int i = 0; i < sites.size(); i += 2) {
+      InstructionHandle ih = (InstructionHandle) sites.get(i);
+      int index = ((Integer) sites.get(i+1)).intValue();
+      InstructionList il = new InstructionList();
+      il.append(factory.createFieldAccess(
+            class_name,
+            SITES_FIELD,
+            Type.INT,
+            Constants.GETSTATIC));
+      il.append(new PUSH(cp, index));
+      il.append(InstructionConstants.IADD);
+      il.append(factory.createInvoke(
+            MEMORY_TRACKER_CLASS,
+            SET_ALLOCATION_SITE_METHOD,
+            Type.VOID,
+            new Type[] { Type.INT },
+            Constants.INVOKESTATIC));
+      InstructionHandle begin = orig_il.insert(ih, il);
+      // a conditional constructor arg, e.g.:
+      //   new Foo(b ? x : y)
+      // may branch directly to the "invokespecial"
+      orig_il.redirectBranches(ih, begin);
+      il.dispose();
+    }
+    method.setMaxStack();
+    method.setMaxLocals();
+    cg.replaceMethod(orig_m, method.getMethod());
+    orig_il.dispose();
+  }
+  private void registerAllocationSites(List keys) {
+    // insert at the start of the "<clinit>", before any "new"s
+    InstructionList il = new InstructionList();
+    il.append(new PUSH(cp, keys.size()));
+    il.append(factory.createNewArray(Type.STRING, (short) 1));
+    for (int i = 0; i < keys.size(); i++) {
+      il.append(InstructionConstants.DUP);
+      il.append(new PUSH(cp, i));
+      il.append(new PUSH(cp, (String) keys.get(i)));
+      il.append(InstructionConstants.AASTORE);
+    }
+    il.append(factory.createInvoke(
+          MEMORY_TRACKER_CLASS,
+          REGISTER_ALLOCATION_SITES_METHOD,
+          Type.INT,
+          new Type[] { new ArrayType(Type.STRING, 1) },
+          Constants.INVOKESTATIC));
+    il.append(factory.createFieldAccess(
+          class_name,
+          SITES_FIELD,
+          Type.INT,
+          Constants.PUTSTATIC));
+    Method clinit_method = null;
+    Method[] methods = cg.getMethods();
+    for (int i = 0; i < methods.length; i++) {
+      if ("<clinit>".equals(methods[i].getName())) {
+        clinit_method = methods[i];
+        break;
+      }
+    }
+    MethodGen method;
+    if (clinit_method == null) {
+      il.append(factory.createReturn(Type.VOID));
+      method = new MethodGen(
+          Constants.ACC_STATIC,
+          Type.VOID,
+          Type.NO_ARGS,
+          new String[] {},
+          "<clinit>",
+          class_name,
+          il,
+          cp);
+      method.setMaxStack();
+      method.setMaxLocals();
+      cg.addMethod(method.getMethod());
+    } else {
+      method = new MethodGen(clinit_method, class_name, cp);
+      InstructionList orig_il = method.getInstructionList();
+      orig_il.insert(il);
+      method.setMaxStack();
+      method.setMaxLocals();
+      cg.replaceMethod(clinit_method, method.getMethod());
+      orig_il.dispose();
+    }
+    il.dispose();
+  }
+
   private void recordArraysAllocations() {
     // Java lacks an "Array" class to represent arrays, so
     // we can't modify a single classes constructor.  Instead